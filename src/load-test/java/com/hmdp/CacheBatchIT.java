@@ -0,0 +1,121 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_MISS_KEY;
+
+/**
+ * CacheClient.queryBatch：按传入顺序返回，未命中的只查一次数据库，写回之后再查不访问数据库
+ */
+class CacheBatchIT extends LoadTestSupport {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void loadsMissesOnceAndKeepsOrder() {
+        String prefix = "cache:batchOrder:";
+        Database db = new Database(1L, 2L, 3L);
+        List<Long> ids = Arrays.asList(3L, 1L, 3L, 99L, 2L);
+        try {
+            List<Shop> first = cacheClient.queryBatch(prefix, ids, Shop.class, db, 10L, TimeUnit.MINUTES);
+
+            Assertions.assertEquals(Arrays.asList(db.shop(3L), db.shop(1L), db.shop(3L), null, db.shop(2L)), first);
+            //重复的id只查一次，所有未命中的一次查询
+            Assertions.assertEquals(1, db.calls.size());
+            Assertions.assertEquals(Arrays.asList(3L, 1L, 99L, 2L), new ArrayList<>(db.calls.get(0)));
+
+            //写回了Redis，不存在的99记录到了不存在id的集合，再查不访问数据库
+            List<Shop> second = cacheClient.queryBatch(prefix, ids, Shop.class, db, 10L, TimeUnit.MINUTES);
+
+            Assertions.assertEquals(first, second);
+            Assertions.assertEquals(1, db.calls.size());
+            Assertions.assertTrue(Boolean.TRUE.equals(stringRedisTemplate.hasKey(prefix + 1)));
+        } finally {
+            clean(prefix);
+        }
+    }
+
+    @Test
+    void queriesDatabaseOnlyForRedisMisses() {
+        String prefix = "cache:batchPartial:";
+        Database db = new Database(1L, 2L, 3L);
+        try {
+            cacheClient.set(prefix + 1, db.shop(1L), 10L, TimeUnit.MINUTES);
+            cacheClient.set(prefix + 3, db.shop(3L), 10L, TimeUnit.MINUTES);
+
+            List<Shop> result = cacheClient.queryBatch(prefix, Arrays.asList(1L, 2L, 3L), Shop.class, db, 10L, TimeUnit.MINUTES);
+
+            Assertions.assertEquals(Arrays.asList(db.shop(1L), db.shop(2L), db.shop(3L)), result);
+            Assertions.assertEquals(Collections.singletonList(Collections.singletonList(2L)), db.calls);
+        } finally {
+            clean(prefix);
+        }
+    }
+
+    @Test
+    void emptyIds() {
+        Database db = new Database();
+        Assertions.assertTrue(cacheClient.queryBatch("cache:batchEmpty:", Collections.<Long>emptyList(),
+                Shop.class, db, 10L, TimeUnit.MINUTES).isEmpty());
+        Assertions.assertTrue(db.calls.isEmpty());
+    }
+
+    private void clean(String prefix) {
+        for (String pattern : new String[]{prefix + "*", CACHE_MISS_KEY + prefix + "*"}) {
+            Set<String> keys = stringRedisTemplate.keys(pattern);
+            if (keys != null && !keys.isEmpty()) {
+                stringRedisTemplate.delete(keys);
+            }
+        }
+    }
+
+    /**
+     * 模拟数据库，记录每次批量查询的id
+     */
+    private static class Database implements Function<Collection<Long>, Map<Long, Shop>> {
+        private final Map<Long, Shop> shops = new HashMap<>();
+        private final List<List<Long>> calls = new ArrayList<>();
+
+        private Database(Long... ids) {
+            for (Long id : ids) {
+                shops.put(id, new Shop().setId(id).setName("shop" + id).setTypeId(1L));
+            }
+        }
+
+        private Shop shop(Long id) {
+            return shops.get(id);
+        }
+
+        @Override
+        public Map<Long, Shop> apply(Collection<Long> ids) {
+            calls.add(new ArrayList<>(ids));
+            Map<Long, Shop> result = new HashMap<>();
+            for (Long id : ids) {
+                if (shops.containsKey(id)) {
+                    result.put(id, shops.get(id));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.hmdp;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.Map;
+
+/**
+ * 压测和集成测试（*IT）的公共配置：共用一个内嵌Redis和一个Spring上下文（H2内存库），压测结果写到 target/load-test/{场景}.json
+ * Redis在第一个测试类加载时启动，JVM退出时停止；上下文被缓存复用，不能在某个测试类结束时停掉Redis
+ */
+@ActiveProfiles("load-test")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+abstract class LoadTestSupport {
+
+    private static final int REDIS_PORT = freePort();
+    private static final RedisServer REDIS_SERVER = startRedis();
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.port", () -> REDIS_PORT);
+    }
+
+    /**
+     * 输出一个场景的结果
+     */
+    static void writeReport(String scenario, Map<String, Object> report) {
+        String json = JSONUtil.toJsonPrettyStr(report);
+        FileUtil.writeUtf8String(json, new File("target/load-test", scenario + ".json"));
+        System.out.println(json);
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static RedisServer startRedis() {
+        try {
+            RedisServer server = new RedisServer(REDIS_PORT);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.stop();
+                } catch (IOException ignored) {
+                    //进程正在退出
+                }
+            }));
+            return server;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
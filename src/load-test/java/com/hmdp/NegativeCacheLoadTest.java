@@ -0,0 +1,107 @@
+package com.hmdp;
+
+import com.hmdp.utils.MissSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_MISS_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+
+/**
+ * 不存在的id占用的Redis内存：每个id一个空值key 和 分片的不存在id集合（MissSet）
+ * 每个id写入当前桶和下一个桶，各占一个intset元素，要求平均每个id不超过MAX_BYTES_PER_ID字节，并且都能查到
+ * 数量可以用系统属性覆盖：-Dloadtest.missIds=1000000
+ */
+class NegativeCacheLoadTest extends LoadTestSupport {
+
+    private static final int TOTAL = Integer.getInteger("loadtest.missIds", 1000000);
+    private static final int BATCH = 10000;
+    //两个桶各8字节，加上set本身的开销
+    private static final long MAX_BYTES_PER_ID = 20;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void missSetMemory() {
+        String prefix = "cache:missTest:";
+        //1.写入不存在id的集合；先测小的，避免前一步释放的内存算进来
+        MissSet missSet = new MissSet(prefix, stringRedisTemplate);
+        long before = usedMemory();
+        for (int from = 0; from < TOTAL; from += BATCH) {
+            missSet.addAll(ids(from, Math.min(from + BATCH, TOTAL)));
+        }
+        long missSetBytes = usedMemory() - before;
+        //2.换一个没有本地镜像的实例，从Redis中查，写入的id都要查到
+        MissSet reader = new MissSet(prefix, stringRedisTemplate);
+        int found = 0;
+        for (int from = 0; from < TOTAL; from += BATCH) {
+            found += reader.containsAll(ids(from, Math.min(from + BATCH, TOTAL))).size();
+        }
+        Set<String> missKeys = stringRedisTemplate.keys(CACHE_MISS_KEY + prefix + "*");
+        if (missKeys != null && !missKeys.isEmpty()) {
+            stringRedisTemplate.delete(missKeys);
+        }
+        //3.旧的做法：每个id写一个空值key
+        before = usedMemory();
+        for (int from = 0; from < TOTAL; from += BATCH) {
+            List<String> keys = keys(prefix, from, Math.min(from + BATCH, TOTAL));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String key : keys) {
+                    conn.setEx(key, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), "");
+                }
+                return null;
+            });
+        }
+        long sentinelBytes = usedMemory() - before;
+        for (int from = 0; from < TOTAL; from += BATCH) {
+            stringRedisTemplate.delete(keys(prefix, from, Math.min(from + BATCH, TOTAL)));
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("ids", TOTAL);
+        report.put("sentinelBytesPerId", (double) sentinelBytes / TOTAL);
+        report.put("missSetBytesPerId", (double) missSetBytes / TOTAL);
+        report.put("found", found);
+        writeReport("negativeCache", report);
+
+        Assertions.assertEquals(TOTAL, found, "写入的不存在id没有查到");
+        Assertions.assertTrue(missSetBytes <= MAX_BYTES_PER_ID * TOTAL, "不存在id集合占用的内存超出上限");
+        Assertions.assertTrue(missSetBytes < sentinelBytes, "不存在id集合比空值key占用的内存还多");
+    }
+
+    private static List<String> ids(int from, int to) {
+        List<String> ids = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            ids.add(String.valueOf(i));
+        }
+        return ids;
+    }
+
+    private static List<String> keys(String prefix, int from, int to) {
+        List<String> keys = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            keys.add(prefix + i);
+        }
+        return keys;
+    }
+
+    private long usedMemory() {
+        Properties info = stringRedisTemplate.execute(
+                (RedisCallback<Properties>) connection -> connection.serverCommands().info("memory"));
+        return Long.parseLong(info.getProperty("used_memory"));
+    }
+}
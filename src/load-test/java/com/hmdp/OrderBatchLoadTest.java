@@ -0,0 +1,119 @@
+package com.hmdp;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 秒杀订单批量入库：每批1、50、500个订单，各写入ORDERS个不同用户的订单，其中每DUPLICATE_EVERY个订单混入一个重复下单
+ * 核对：每个用户只有一单、订单一个不少、库存正好扣完；库存不足的一批整体回滚
+ * 数量可以用系统属性覆盖：-Dloadtest.batchOrders=2000
+ */
+class OrderBatchLoadTest extends LoadTestSupport {
+
+    private static final int ORDERS = Integer.getInteger("loadtest.batchOrders", 2000);
+    private static final int DUPLICATE_EVERY = 10;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Test
+    void batchSize1() {
+        run(1);
+    }
+
+    @Test
+    void batchSize50() {
+        run(50);
+    }
+
+    @Test
+    void batchSize500() {
+        run(500);
+    }
+
+    private void run(int batchSize) {
+        // 1.库存正好等于用户数
+        Long voucherId = createVoucher("orderBatch" + batchSize, ORDERS);
+        List<VoucherOrder> orders = new ArrayList<>(ORDERS + ORDERS / DUPLICATE_EVERY);
+        for (int i = 0; i < ORDERS; i++) {
+            orders.add(order(voucherId, i + 1L));
+            if (i % DUPLICATE_EVERY == 0) {
+                //同一个用户再下一单，可能和第一单在同一批，也可能在后面的批次
+                orders.add(order(voucherId, i / 2 + 1L));
+            }
+        }
+        // 2.按批次写入
+        long begin = System.nanoTime();
+        for (int from = 0; from < orders.size(); from += batchSize) {
+            voucherOrderService.createVoucherOrders(orders.subList(from, Math.min(from + batchSize, orders.size())));
+        }
+        long cost = System.nanoTime() - begin;
+        // 3.库存已经扣完，再来一批要整体失败，一个订单都不写入
+        List<VoucherOrder> overflow = Collections.singletonList(order(voucherId, ORDERS + 1L));
+        Assertions.assertThrows(IllegalStateException.class, () -> voucherOrderService.createVoucherOrders(overflow));
+
+        // 4.核对
+        List<VoucherOrder> persisted = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        long distinctUsers = persisted.stream().map(VoucherOrder::getUserId).distinct().count();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("batchSize", batchSize);
+        report.put("orders", orders.size());
+        report.put("users", ORDERS);
+        report.put("throughput", orders.size() * 1e9 / cost);
+        report.put("persisted", persisted.size());
+        report.put("dbStock", seckillVoucher.getStock());
+        writeReport("orderBatch" + batchSize, report);
+
+        Assertions.assertEquals(persisted.size(), distinctUsers, "重复下单");
+        Assertions.assertEquals(ORDERS, persisted.size(), "订单丢失");
+        Assertions.assertEquals(0, seckillVoucher.getStock(), "库存没有正好扣完");
+    }
+
+    private VoucherOrder order(Long voucherId, Long userId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(redisIdWorker.nextId("order"));
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        return order;
+    }
+
+    private Long createVoucher(String title, int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle(title);
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+}
@@ -0,0 +1,277 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+
+/**
+ * 秒杀压测：mvn test -P load-test
+ * 用内嵌的Redis和H2（MySQL模式）启动整个应用（见LoadTestSupport），按固定的场景请求 /voucher-order/seckill/{id}，
+ * 统计放行、拒绝、超卖、订单落库延迟和请求延迟分位数，结果写到 target/load-test/{场景}.json
+ * 场景参数可以用系统属性覆盖：-Dloadtest.users=2000 -Dloadtest.stock=200 -Dloadtest.attempts=2
+ * -Dloadtest.rampMillis=1000 -Dloadtest.threads=64
+ */
+class SeckillLoadTest extends LoadTestSupport {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 2000);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 200);
+    //每个用户请求几次，第二次起应该被判为重复下单
+    private static final int ATTEMPTS = Integer.getInteger("loadtest.attempts", 2);
+    //所有请求在这段时间内均匀发出
+    private static final int RAMP_MILLIS = Integer.getInteger("loadtest.rampMillis", 1000);
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 64);
+    //等待订单全部落库的最长时间
+    private static final long PERSIST_TIMEOUT_MILLIS = 60_000L;
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void flashSale() throws Exception {
+        run("flashSale", 0);
+    }
+
+    @Test
+    void flashSaleSegmented() throws Exception {
+        run("flashSaleSegmented", 8);
+    }
+
+    private void run(String scenario, int segments) throws Exception {
+        // 1.创建秒杀券和用户
+        Long voucherId = createVoucher(scenario, segments);
+        String[] tokens = login(scenario);
+
+        // 2.按计划的时间发出请求，延迟从计划时间开始算，线程池排队的时间也算在内
+        int total = USERS * ATTEMPTS;
+        Queue<Sample> samples = new ConcurrentLinkedQueue<>();
+        CountDownLatch latch = new CountDownLatch(total);
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(THREADS);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            String token = tokens[i % USERS];
+            long plannedNanos = start + TimeUnit.MILLISECONDS.toNanos((long) RAMP_MILLIS * i / total);
+            executor.schedule(() -> {
+                try {
+                    samples.add(seckill(voucherId, token, plannedNanos));
+                } finally {
+                    latch.countDown();
+                }
+            }, plannedNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        latch.await();
+        long elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+
+        // 3.等待放行的订单落库，记下每个订单第一次查到的时间
+        Map<Long, Long> acceptedAt = new HashMap<>();
+        Map<String, Integer> rejected = new TreeMap<>();
+        long[] latencies = new long[samples.size()];
+        int n = 0;
+        for (Sample sample : samples) {
+            latencies[n++] = sample.latencyNanos;
+            if (sample.orderId != null) {
+                acceptedAt.put(sample.orderId, sample.doneNanos);
+            } else {
+                rejected.merge(sample.reason, 1, Integer::sum);
+            }
+        }
+        Map<Long, Long> persistedAt = waitPersisted(voucherId, acceptedAt.size());
+        long[] lags = persistedAt.entrySet().stream()
+                .filter(e -> acceptedAt.containsKey(e.getKey()))
+                .mapToLong(e -> e.getValue() - acceptedAt.get(e.getKey()))
+                .toArray();
+
+        // 4.核对：数据库中的订单不能超过库存，一个用户只有一单，放行的订单都要落库
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        long distinctUsers = orders.stream().map(VoucherOrder::getUserId).distinct().count();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        int oversold = Math.max(0, orders.size() - STOCK);
+        int duplicated = (int) (orders.size() - distinctUsers);
+        int lost = (int) acceptedAt.keySet().stream().filter(id -> !persistedAt.containsKey(id)).count();
+
+        // 5.输出结果
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("scenario", scenario);
+        report.put("segments", segments);
+        report.put("users", USERS);
+        report.put("stock", STOCK);
+        report.put("attempts", ATTEMPTS);
+        report.put("rampMillis", RAMP_MILLIS);
+        report.put("threads", THREADS);
+        report.put("requests", total);
+        report.put("throughput", total * 1e9 / elapsedNanos);
+        report.put("accepted", acceptedAt.size());
+        report.put("rejected", rejected);
+        report.put("persisted", orders.size());
+        report.put("oversold", oversold);
+        report.put("duplicated", duplicated);
+        report.put("lost", lost);
+        report.put("dbStock", seckillVoucher.getStock());
+        report.put("latencyMillis", percentiles(latencies));
+        report.put("persistLagMillis", percentiles(lags));
+        writeReport(scenario, report);
+
+        Assertions.assertEquals(0, oversold, "超卖");
+        Assertions.assertEquals(0, duplicated, "重复下单");
+        Assertions.assertEquals(0, lost, "放行的订单没有落库");
+        Assertions.assertTrue(seckillVoucher.getStock() >= 0, "数据库库存为负");
+    }
+
+    private Long createVoucher(String scenario, int segments) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle(scenario);
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(STOCK);
+        voucher.setStockSegments(segments);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 用户id固定为1..USERS，每个场景的token不同
+     */
+    private String[] login(String scenario) {
+        String[] tokens = new String[USERS];
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < USERS; i++) {
+                tokens[i] = scenario + "-" + (i + 1);
+                Map<String, String> user = new HashMap<>(4);
+                user.put("id", String.valueOf(i + 1));
+                user.put("nickName", "user_" + (i + 1));
+                user.put("icon", "");
+                conn.hMSet(LOGIN_USER_KEY + tokens[i], user);
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private Sample seckill(Long voucherId, String token, long plannedNanos) {
+        Sample sample = new Sample();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(
+                    "http://localhost:" + port + "/voucher-order/seckill/" + voucherId).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("authorization", token);
+            try (InputStream in = connection.getInputStream()) {
+                JSONObject result = JSONUtil.parseObj(new String(readAll(in), StandardCharsets.UTF_8));
+                if (Boolean.TRUE.equals(result.getBool("success"))) {
+                    sample.orderId = result.getLong("data");
+                } else {
+                    sample.reason = result.getStr("errorMsg");
+                }
+            }
+        } catch (IOException e) {
+            sample.reason = "HTTP " + e.getClass().getSimpleName();
+        }
+        sample.doneNanos = System.nanoTime();
+        sample.latencyNanos = sample.doneNanos - plannedNanos;
+        return sample;
+    }
+
+    /**
+     * 轮询数据库直到订单数达到放行数，或者超时
+     */
+    private Map<Long, Long> waitPersisted(Long voucherId, int expected) throws InterruptedException {
+        Map<Long, Long> persistedAt = new ConcurrentHashMap<>();
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT_MILLIS;
+        while (persistedAt.size() < expected && System.currentTimeMillis() < deadline) {
+            List<Object> ids = voucherOrderService.listObjs(voucherOrderService.query()
+                    .select("id").eq("voucher_id", voucherId).getWrapper());
+            long now = System.nanoTime();
+            for (Object id : ids) {
+                persistedAt.putIfAbsent(((Number) id).longValue(), now);
+            }
+            Thread.sleep(20);
+        }
+        return persistedAt;
+    }
+
+    /**
+     * 分位数，单位毫秒
+     */
+    private static Map<String, Object> percentiles(long[] nanos) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (nanos.length == 0) {
+            return result;
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            int index = Math.max(0, (int) Math.ceil(q * sorted.length) - 1);
+            result.put("p" + String.valueOf(q * 100).replaceAll("\\.0$", ""), sorted[index] / 1e6);
+        }
+        result.put("max", sorted[sorted.length - 1] / 1e6);
+        return result;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Sample {
+        private long latencyNanos;
+        private long doneNanos;
+        private Long orderId;
+        private String reason;
+    }
+}
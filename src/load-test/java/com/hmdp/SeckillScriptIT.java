@@ -0,0 +1,121 @@
+package com.hmdp;
+
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.SegmentedStock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_INFO_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * seckill.lua的秒杀时间判断：开始之前返回3，结束之后返回4，都不扣库存、不记录用户；边界时刻算在秒杀时间内
+ * 时间之内的只用库存不足、重复下单来验证通过了时间判断，不写入stream.orders，避免后台线程去创建订单
+ */
+class SeckillScriptIT extends LoadTestSupport {
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final Long VOUCHER_ID = 919001L;
+    private static final LocalDateTime BEGIN = LocalDateTime.of(2022, 1, 1, 10, 0, 0);
+    private static final LocalDateTime END = BEGIN.plusHours(2);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillGate seckillGate;
+
+    @AfterEach
+    void tearDown() {
+        stringRedisTemplate.delete(Arrays.asList(SECKILL_INFO_KEY + VOUCHER_ID,
+                SECKILL_STOCK_KEY + VOUCHER_ID, SECKILL_ORDER_KEY + VOUCHER_ID));
+    }
+
+    @Test
+    void notStartedReturns3() {
+        prepare(1);
+
+        Assertions.assertEquals(SegmentedStock.NOT_STARTED, seckill(1L, millis(BEGIN) - 1));
+        Assertions.assertEquals(SegmentedStock.NOT_STARTED, seckill(1L, millis(BEGIN.minusDays(1))));
+        assertUntouched();
+    }
+
+    @Test
+    void endedReturns4() {
+        prepare(1);
+
+        Assertions.assertEquals(SegmentedStock.ENDED, seckill(1L, millis(END) + 1));
+        Assertions.assertEquals(SegmentedStock.ENDED, seckill(1L, millis(END.plusDays(1))));
+        assertUntouched();
+    }
+
+    @Test
+    void boundariesAreInsideWindow() {
+        //库存为0，通过时间判断之后返回库存不足
+        prepare(0);
+
+        Assertions.assertEquals(SegmentedStock.SOLD_OUT, seckill(1L, millis(BEGIN)));
+        Assertions.assertEquals(SegmentedStock.SOLD_OUT, seckill(1L, millis(END)));
+        //已经下过单的用户，通过时间判断之后返回重复下单
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "1");
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + VOUCHER_ID, "1");
+        Assertions.assertEquals(SegmentedStock.DUPLICATE, seckill(1L, millis(BEGIN.plusHours(1))));
+    }
+
+    @Test
+    void noInfoMeansNoTimeLimit() {
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, "0");
+
+        Assertions.assertEquals(SegmentedStock.SOLD_OUT, seckill(1L, 0L));
+        Assertions.assertEquals(SegmentedStock.SOLD_OUT, seckill(1L, Long.MAX_VALUE));
+    }
+
+    @Test
+    void segmentedWindowMatchesScript() {
+        //分段库存的秒杀券在SeckillGate.checkWindow中判断，结果要和脚本一致
+        prepare(0);
+        long[] times = {millis(BEGIN) - 1, millis(BEGIN), millis(END), millis(END) + 1};
+        int[] expected = {SegmentedStock.NOT_STARTED, SegmentedStock.SUCCESS, SegmentedStock.SUCCESS, SegmentedStock.ENDED};
+        for (int i = 0; i < times.length; i++) {
+            Assertions.assertEquals(expected[i], seckillGate.checkWindow(VOUCHER_ID, times[i]));
+        }
+    }
+
+    private void prepare(int stock) {
+        stringRedisTemplate.opsForHash().putAll(SECKILL_INFO_KEY + VOUCHER_ID, SeckillGate.info(BEGIN, END));
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + VOUCHER_ID, String.valueOf(stock));
+    }
+
+    private void assertUntouched() {
+        Assertions.assertEquals("1", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + VOUCHER_ID));
+        Assertions.assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_KEY + VOUCHER_ID)));
+    }
+
+    private int seckill(Long userId, long now) {
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                VOUCHER_ID.toString(), userId.toString(), String.valueOf(now), "1");
+        return result.intValue();
+    }
+
+    private static long millis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,130 @@
+package com.hmdp;
+
+import com.hmdp.utils.SegmentedStock;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 分段库存直接调用SegmentedStock：N=1、4、16段，USERS个用户每人请求两次，抢STOCK个库存，请求顺序打乱
+ * 核对：成功数正好等于库存、各段库存扣完、每个用户最多成功一次、各段记下的用户没有重复
+ * 单机Redis只有一个执行线程，分段的收益要在集群中各段分布到不同分片时才能体现，这里的吞吐量只用来对比开销
+ * 参数可以用系统属性覆盖：-Dloadtest.segmentUsers=20000 -Dloadtest.segmentStock=10000 -Dloadtest.threads=64
+ */
+class SegmentedStockLoadTest extends LoadTestSupport {
+
+    private static final int USERS = Integer.getInteger("loadtest.segmentUsers", 20000);
+    private static final int STOCK = Integer.getInteger("loadtest.segmentStock", 10000);
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 64);
+    private static final int ATTEMPTS = 2;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void segments1() throws InterruptedException {
+        run(1);
+    }
+
+    @Test
+    void segments4() throws InterruptedException {
+        run(4);
+    }
+
+    @Test
+    void segments16() throws InterruptedException {
+        run(16);
+    }
+
+    private void run(int segments) throws InterruptedException {
+        // 1.初始化库存，请求顺序固定打乱，同一个用户的两次请求可能并发
+        Long voucherId = Long.MAX_VALUE - segments;
+        segmentedStock.init(voucherId, STOCK, segments);
+        List<Long> requests = new ArrayList<>(USERS * ATTEMPTS);
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            for (long userId = 1; userId <= USERS; userId++) {
+                requests.add(userId);
+            }
+        }
+        Collections.shuffle(requests, new Random(segments));
+
+        // 2.并发请求
+        AtomicInteger next = new AtomicInteger();
+        AtomicIntegerArray successByUser = new AtomicIntegerArray(USERS + 1);
+        AtomicIntegerArray results = new AtomicIntegerArray(SegmentedStock.ENDED + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long begin = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            executor.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests.size()) {
+                    Long userId = requests.get(i);
+                    int result = segmentedStock.trySeckill(voucherId, userId, segments);
+                    results.incrementAndGet(result);
+                    if (result == SegmentedStock.SUCCESS) {
+                        successByUser.incrementAndGet(userId.intValue());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES), "请求没有在5分钟内完成");
+        long cost = System.nanoTime() - begin;
+
+        // 3.核对
+        int maxPerUser = 0;
+        for (int userId = 1; userId <= USERS; userId++) {
+            maxPerUser = Math.max(maxPerUser, successByUser.get(userId));
+        }
+        long recorded = 0;
+        Set<String> recordedUsers = new HashSet<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < segments; i++) {
+            Set<String> members = stringRedisTemplate.opsForSet().members(SegmentedStock.orderKey(voucherId, i));
+            recorded += members == null ? 0 : members.size();
+            if (members != null) {
+                recordedUsers.addAll(members);
+            }
+            keys.add(SegmentedStock.stockKey(voucherId, i));
+            keys.add(SegmentedStock.orderKey(voucherId, i));
+        }
+        long remaining = segmentedStock.remaining(voucherId, segments);
+        stringRedisTemplate.delete(keys);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("segments", segments);
+        report.put("requests", requests.size());
+        report.put("stock", STOCK);
+        report.put("threads", THREADS);
+        report.put("throughput", requests.size() * 1e9 / cost);
+        report.put("success", results.get(SegmentedStock.SUCCESS));
+        report.put("soldOut", results.get(SegmentedStock.SOLD_OUT));
+        report.put("duplicate", results.get(SegmentedStock.DUPLICATE));
+        report.put("remaining", remaining);
+        writeReport("segmentedStock" + segments, report);
+
+        Assertions.assertEquals(STOCK, results.get(SegmentedStock.SUCCESS), "成功数不等于库存");
+        Assertions.assertEquals(0, remaining, "库存没有扣完");
+        Assertions.assertEquals(1, maxPerUser, "同一个用户成功了不止一次");
+        Assertions.assertEquals(STOCK, recorded, "记下的用户数不等于库存");
+        Assertions.assertEquals(recorded, recordedUsers.size(), "同一个用户记在了多个段中");
+    }
+}
@@ -0,0 +1,138 @@
+package com.hmdp;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.SimpleRedisLock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import javax.annotation.Resource;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可重入分布式锁：同一个线程重入几次就要释放几次；其他线程既拿不到也释放不了；
+ * tryLockOnce不可重入，持有者标示不对的unlockOnce不删除锁；lock在持有者释放后被唤醒
+ */
+class SimpleRedisLockIT extends LoadTestSupport {
+
+    private static final String NAME = "it:simple";
+    private static final String KEY = "lock:" + NAME;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    private final ExecutorService other = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        other.shutdownNow();
+        stringRedisTemplate.delete(KEY);
+    }
+
+    @Test
+    void reentrantUntilLastUnlock() {
+        ILock lock = new SimpleRedisLock(NAME, stringRedisTemplate);
+
+        Assertions.assertTrue(lock.tryLock(30L));
+        Assertions.assertTrue(lock.tryLock(30L));
+        Assertions.assertEquals("2", holdCount());
+
+        //外层还持有，锁不能删除
+        lock.unlock();
+        Assertions.assertEquals("1", holdCount());
+        Assertions.assertFalse(inOtherThread(() -> lock.tryLock(30L)));
+
+        lock.unlock();
+        Assertions.assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(KEY)));
+        Assertions.assertTrue(inOtherThread(() -> {
+            boolean locked = lock.tryLock(30L);
+            lock.unlock();
+            return locked;
+        }));
+    }
+
+    @Test
+    void nonOwnerCannotUnlock() {
+        ILock lock = new SimpleRedisLock(NAME, stringRedisTemplate);
+        Assertions.assertTrue(lock.tryLock(30L));
+
+        //其他线程释放，同一个实例和新的实例都一样：不是自己的锁不删除
+        inOtherThread(() -> {
+            lock.unlock();
+            new SimpleRedisLock(NAME, stringRedisTemplate).unlock();
+            return null;
+        });
+
+        Assertions.assertEquals("1", holdCount());
+        lock.unlock();
+        Assertions.assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(KEY)));
+    }
+
+    @Test
+    void unlockOnceChecksToken() {
+        String token = SimpleRedisLock.tryLockOnce(NAME, 30000L, stringRedisTemplate);
+        Assertions.assertNotNull(token);
+        //每次都是新的持有者标示，同一个线程也不能重入；和同名的SimpleRedisLock互斥
+        Assertions.assertNull(SimpleRedisLock.tryLockOnce(NAME, 30000L, stringRedisTemplate));
+        Assertions.assertFalse(new SimpleRedisLock(NAME, stringRedisTemplate).tryLock(30L));
+
+        SimpleRedisLock.unlockOnce(NAME, "not-the-owner", stringRedisTemplate);
+        Assertions.assertTrue(Boolean.TRUE.equals(stringRedisTemplate.hasKey(KEY)));
+
+        //持有者标示一致，在其他线程中也能释放
+        inOtherThread(() -> {
+            SimpleRedisLock.unlockOnce(NAME, token, stringRedisTemplate);
+            return null;
+        });
+        Assertions.assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(KEY)));
+    }
+
+    @Test
+    void lockWaitsForRelease() throws Exception {
+        ILock lock = new SimpleRedisLock(NAME, stringRedisTemplate, listenerContainer);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> holder = other.submit(() -> {
+            Assertions.assertTrue(lock.lock(1, TimeUnit.SECONDS));
+            locked.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            lock.unlock();
+            return null;
+        });
+        Assertions.assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        //被占用时等待超时返回false
+        Assertions.assertFalse(lock.lock(100, TimeUnit.MILLISECONDS));
+        //持有者释放之后，等待的线程拿到锁
+        release.countDown();
+        Assertions.assertTrue(lock.lock(5, TimeUnit.SECONDS));
+        holder.get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals("1", holdCount());
+        lock.unlock();
+    }
+
+    /**
+     * 锁中唯一一个持有者的重入次数
+     */
+    private String holdCount() {
+        return (String) stringRedisTemplate.opsForHash().values(KEY).get(0);
+    }
+
+    private <T> T inOtherThread(Callable<T> task) {
+        try {
+            return other.submit(task).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.hmdp;
+
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.StripedUserLock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_ORDER_STRIPE;
+
+/**
+ * 按用户分段的两级锁：Redis锁被其他节点持有时获取失败，已经拿到的本地锁要全部释放，本节点其他线程还能获取这些段
+ * 其他节点用tryLockOnce持有同名的Redis锁来模拟
+ */
+class StripedUserLockIT extends LoadTestSupport {
+
+    private static final Long USER_A = 1L;
+    private static final Long USER_B = 2L;
+
+    @Resource
+    private StripedUserLock stripedUserLock;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final ExecutorService other = Executors.newSingleThreadExecutor();
+    //其他节点持有的锁：锁名 -> 持有者标示
+    private final Map<String, String> tokens = new HashMap<>();
+
+    @AfterEach
+    void tearDown() {
+        other.shutdownNow();
+        for (Long userId : Arrays.asList(USER_A, USER_B)) {
+            stringRedisTemplate.delete("lock:" + LOCK_ORDER_STRIPE + StripedUserLock.stripe(userId));
+        }
+    }
+
+    @Test
+    void tryLockReleasesLocalLocksWhenRedisLockFails() {
+        holdElsewhere(USER_A);
+
+        Assertions.assertFalse(stripedUserLock.get(USER_A).tryLock(30L));
+
+        //本地锁已经释放：Redis锁释放之后其他线程马上能拿到
+        releaseElsewhere();
+        assertFreeInOtherThread(USER_A);
+    }
+
+    @Test
+    void lockReleasesLocalLocksWhenRedisLockTimesOut() throws InterruptedException {
+        holdElsewhere(USER_A);
+
+        Assertions.assertFalse(stripedUserLock.get(USER_A).lock(100, TimeUnit.MILLISECONDS));
+
+        releaseElsewhere();
+        assertFreeInOtherThread(USER_A);
+    }
+
+    @Test
+    void batchReleasesEveryStripe() {
+        Assertions.assertNotEquals(StripedUserLock.stripe(USER_A), StripedUserLock.stripe(USER_B));
+        //只有后获取的一段被其他节点持有，先拿到的那一段的本地锁也要释放
+        holdElsewhere(StripedUserLock.stripe(USER_A) > StripedUserLock.stripe(USER_B) ? USER_A : USER_B);
+
+        Assertions.assertFalse(stripedUserLock.get(Arrays.asList(USER_A, USER_B)).tryLock(30L));
+
+        releaseElsewhere();
+        assertFreeInOtherThread(USER_A);
+        assertFreeInOtherThread(USER_B);
+    }
+
+    @Test
+    void localContentionLeavesNoRedisLock() throws InterruptedException {
+        ILock lock = stripedUserLock.get(USER_A);
+        Assertions.assertTrue(lock.tryLock(30L));
+        try {
+            //同一段被本节点其他线程持有，在本地锁上就失败了，不会去获取Redis锁
+            Assertions.assertFalse(inOtherThread(() -> stripedUserLock.get(USER_A).lock(100, TimeUnit.MILLISECONDS)));
+        } finally {
+            lock.unlock();
+        }
+        Assertions.assertFalse(Boolean.TRUE.equals(
+                stringRedisTemplate.hasKey("lock:" + LOCK_ORDER_STRIPE + StripedUserLock.stripe(USER_A))));
+        assertFreeInOtherThread(USER_A);
+    }
+
+    private void holdElsewhere(Long userId) {
+        String name = LOCK_ORDER_STRIPE + StripedUserLock.stripe(userId);
+        String token = SimpleRedisLock.tryLockOnce(name, 30000L, stringRedisTemplate);
+        Assertions.assertNotNull(token);
+        tokens.put(name, token);
+    }
+
+    private void releaseElsewhere() {
+        tokens.forEach((name, token) -> SimpleRedisLock.unlockOnce(name, token, stringRedisTemplate));
+        tokens.clear();
+    }
+
+    /**
+     * 在其他线程中不等待地获取这个用户的锁再释放；本地锁没释放的话会失败
+     */
+    private void assertFreeInOtherThread(Long userId) {
+        Assertions.assertTrue(inOtherThread(() -> {
+            ILock lock = stripedUserLock.get(userId);
+            boolean locked = lock.tryLock(30L);
+            if (locked) {
+                lock.unlock();
+            }
+            return locked;
+        }));
+    }
+
+    private <T> T inOtherThread(Callable<T> task) {
+        try {
+            return other.submit(task).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -3,9 +3,16 @@ package com.hmdp.config;
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.mapper.ShopTypeMapper;
+import com.hmdp.utils.InMemoryChangeEventSource;
+import com.hmdp.utils.TableChangeInterceptor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Collections;
+
+import static com.hmdp.utils.CacheInvalidationConsumer.TABLE_SHOP_TYPE;
+
 @Configuration
 public class MybatisConfig {
     @Bean
@@ -14,4 +21,13 @@ public class MybatisConfig {
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
+
+    /**
+     * 店铺类型表的任何写操作都发布变更，店铺类型的版本号加一
+     */
+    @Bean
+    public TableChangeInterceptor tableChangeInterceptor(InMemoryChangeEventSource changeEventSource) {
+        return new TableChangeInterceptor(
+                Collections.singletonMap(ShopTypeMapper.class.getName(), TABLE_SHOP_TYPE), changeEventSource);
+    }
 }
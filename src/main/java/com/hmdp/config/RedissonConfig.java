@@ -1,9 +1,11 @@
 package com.hmdp.config;
 
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -14,11 +16,11 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 public class RedissonConfig {
     @Bean
-    public RedissonClient redissonClient(){
-        //配置
+    public RedissonClient redissonClient(RedisProperties redisProperties){
+        //配置，和StringRedisTemplate连接同一个Redis（spring.redis）
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.121.133:6379")
-                .setPassword("123456");
+        config.useSingleServer().setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                .setPassword(StrUtil.emptyToNull(redisProperties.getPassword()));
         // 创建RedissonClient对象
         return Redisson.create(config);
     }
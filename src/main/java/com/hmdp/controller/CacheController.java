@@ -0,0 +1,39 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LocalCache;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存诊断
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 当前本节点探测到的热点key和本地副本的命中情况
+     */
+    @GetMapping("hot-keys")
+    public Result queryHotKeys() {
+        LocalCache<Object> replicas = cacheClient.getHotKeyReplicas();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hotKeys", cacheClient.getHotKeys());
+        result.put("replicaSize", replicas.size());
+        result.put("replicaHits", replicas.getHitCount());
+        result.put("replicaMisses", replicas.getMissCount());
+        return Result.ok(result);
+    }
+}
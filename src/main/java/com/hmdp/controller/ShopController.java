@@ -6,7 +6,10 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.HttpCacheUtils;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -33,9 +36,23 @@ public class ShopController {
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
+    public ResponseEntity<Result> queryShopById(
+            @PathVariable("id") Long id,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 //        return Result.ok(shopService.getById(id));
-            return Result.ok(shopService.queryById(id));
+        //1.本地缓存中有这个店铺，直接比较ETag，一致返回304
+        String etag = shopService.queryLocalEtag(id);
+        if (HttpCacheUtils.matches(ifNoneMatch, etag)) {
+            return HttpCacheUtils.notModified(etag, HttpCacheUtils.SHOP_CACHE_CONTROL);
+        }
+        //2.查询店铺，根据更新时间生成ETag
+        Result result = shopService.queryById(id);
+        Shop shop = (Shop) result.getData();
+        etag = shop == null ? null : HttpCacheUtils.etag(id, shop.getUpdateTime());
+        if (HttpCacheUtils.matches(ifNoneMatch, etag)) {
+            return HttpCacheUtils.notModified(etag, HttpCacheUtils.SHOP_CACHE_CONTROL);
+        }
+        return HttpCacheUtils.ok(result, etag, HttpCacheUtils.SHOP_CACHE_CONTROL);
     }
 
     /**
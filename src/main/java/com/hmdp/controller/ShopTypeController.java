@@ -1,15 +1,18 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.HttpCacheUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -26,10 +29,21 @@ public class ShopTypeController {
     private IShopTypeService typeService;
 
     @GetMapping("list")
-    public Result queryTypeList() {
+    public ResponseEntity<byte[]> queryTypeList(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 //        List<ShopType> typeList = typeService
 //                .query().orderByAsc("sort").list();
 
-        return typeService.queryTypeList();
+        //1.内存中当前版本的店铺类型，ETag一致返回304
+        ShopTypeSnapshot snapshot = typeService.getSnapshot();
+        if (HttpCacheUtils.matches(ifNoneMatch, snapshot.getEtag())) {
+            return HttpCacheUtils.notModified(snapshot.getEtag(), HttpCacheUtils.SHOP_TYPE_CACHE_CONTROL);
+        }
+        //2.有变化，直接返回序列化好的响应体
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(snapshot.getEtag())
+                .cacheControl(HttpCacheUtils.SHOP_TYPE_CACHE_CONTROL)
+                .body(snapshot.getBody());
     }
 }
@@ -0,0 +1,45 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+
+import java.util.List;
+
+/**
+ * 某个版本的店铺类型列表，创建之后不再修改，版本变化时整个替换
+ * body是序列化好的响应体，直接写给客户端，每次请求不用再转换
+ */
+public class ShopTypeSnapshot {
+    private final long version;
+    private final List<ShopType> types;
+    private final byte[] body;
+    private final String etag;
+
+    public ShopTypeSnapshot(long version, List<ShopType> types, byte[] body, String etag) {
+        this.version = version;
+        this.types = types;
+        this.body = body;
+        this.etag = etag;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 不可修改的列表
+     */
+    public List<ShopType> getTypes() {
+        return types;
+    }
+
+    /**
+     * 所有请求共用同一个数组，不要修改
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+}
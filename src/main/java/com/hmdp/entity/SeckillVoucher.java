@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 库存分成几段，0表示不分段
+     */
+    private Integer stockSegments;
+
     /**
      * 创建时间
      */
@@ -15,20 +15,31 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.InMemoryChangeEventSource;
+import com.hmdp.utils.RowChange;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.CacheInvalidationConsumer.TABLE_BLOG;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -51,6 +62,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private InMemoryChangeEventSource changeEventSource;
+
+    //注册布隆过滤器，已有的笔记id在CacheWarmUpRunner中分页加入
+    @PostConstruct
+    private void init() {
+        cacheClient.registerBloomFilter(CACHE_BLOG_KEY, BLOOM_BLOG_KEY);
+    }
+
     /**
      * 分页查询
      *
@@ -65,18 +88,21 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户
+        queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
-        //1.查询blog
-        Blog blog = getById(id);
+        //0.布隆过滤器判断一定不存在，不用查数据库
+        if (!cacheClient.mightExist(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在");
+        }
+        //1.查询blog，热门笔记在启动时已经预热到缓存中
+        Blog blog = cacheClient.queryWithPassThrough(
+                CACHE_BLOG_KEY, id, Blog.class, this::getById, CACHE_BLOG_TTL, TimeUnit.MINUTES);
 
         if (blog == null) {
             return Result.fail("笔记不存在");
@@ -111,6 +137,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 3.2.保存用户到Redis的set集合  zadd key value score
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                //本节点的点赞集合副本也删掉，其他节点等副本过期
+                cacheClient.evictLocal(key);
+                //点赞数变了，删除笔记缓存
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         } else {
             // 4.如果已点赞，取消点赞
@@ -119,6 +149,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 4.2.把用户从Redis的set集合移除
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.evictLocal(key);
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -155,6 +187,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
+        cacheClient.addToBloomFilter(CACHE_BLOG_KEY, blog.getId());
+        changeEventSource.publish(RowChange.of(TABLE_BLOG, RowChange.Type.INSERT, blog.getId(), null, blog));
         //3.查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id=?
         //follow_user_id是用户关注的人的id
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
@@ -210,9 +244,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //不改变顺序
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
+        //5.1批量查询blog有关的用户
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            //5.1查询blog有关的用户
-            queryBlogUser(blog);
             //5.2查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -243,18 +277,37 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = user.getId();
         // 2.判断当前登录用户是否已经点赞
         String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
+        //热门笔记的点赞集合是热点key，通过CacheClient查询
+        Double score = cacheClient.zScore(key, userId.toString());
 
         blog.setIsLike(score != null);
     }
 
 
     private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        //获取用户的姓名
-        blog.setName(user.getNickName());
-        //获取用户的头像
-        blog.setIcon(user.getIcon());
+        queryBlogUsers(Collections.singletonList(blog));
+    }
+
+    /**
+     * 批量查询笔记的作者，一页笔记只访问固定次数的Redis和数据库
+     * @param blogs
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = cacheClient.queryBatch(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user == null) {
+                continue;
+            }
+            Blog blog = blogs.get(i);
+            //获取用户的姓名
+            blog.setName(user.getNickName());
+            //获取用户的头像
+            blog.setIcon(user.getIcon());
+        }
     }
 }
@@ -1,9 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,8 +8,11 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HttpCacheUtils;
+import com.hmdp.utils.InMemoryChangeEventSource;
+import com.hmdp.utils.LocalCache;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RowChange;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -25,17 +25,16 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.CacheInvalidationConsumer.TABLE_SHOP;
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
@@ -55,6 +54,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private InMemoryChangeEventSource changeEventSource;
+
+    //店铺详情开启本地一级缓存，注册布隆过滤器，已有的店铺id在CacheWarmUpRunner中分页加入
+    @PostConstruct
+    private void init() {
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY, CACHE_SHOP_LOCAL_SIZE, CACHE_SHOP_LOCAL_TTL, TimeUnit.SECONDS);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, BLOOM_SHOP_KEY);
+    }
+
+    /**
+     * 新增店铺，同时把id加入布隆过滤器
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = IShopService.super.save(shop);
+        if (success) {
+            cacheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+            //发布变更，写入GEO
+            changeEventSource.publish(RowChange.of(TABLE_SHOP, RowChange.Type.INSERT, shop.getId(), null, shop));
+        }
+        return success;
+    }
+
     /**
      * 根据id返回商户信息
      *
@@ -78,6 +101,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         //Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
+        //逻辑过期 + 概率提前刷新，热点key不会同时过期
+        //Shop shop = cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
         if (shop == null) {
             return Result.fail("店铺不存在");
         }
@@ -85,124 +111,36 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-
     /**
-     * 将缓存穿透封装到一个方法中
-     *
-     * @return
+     * 只从本地一级缓存中取店铺的ETag，不查Redis，也不用反序列化
+     * @return 本地没有缓存返回null
      */
-    public Shop queryWithPassThrough(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.从redis中查询店铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        //缓存穿透解决：判断命中的是否是空值
-        if (shopJson != null) {
-            //返回一个错误信息
-//            return Result.fail("店铺信息不存在");
-            return null;
-        }
-
-        //4.不存在，根据id查询
-        Shop shop = getById(id);
-        //5.不存在，返回错误
-        if (shop == null) {
-            //缓存穿透解决：将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            //返回错误信息
-            return null;
-        }
-        //6.存在，写入redis,//添加过期时间
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //7.返回
-        return shop;
+    @Override
+    public String queryLocalEtag(Long id) {
+        LocalCache<Object> localCache = cacheClient.getLocalCache(CACHE_SHOP_KEY);
+        Object shop = localCache == null ? null : localCache.get(CACHE_SHOP_KEY + id);
+        return shop == null ? null : HttpCacheUtils.etag(id, ((Shop) shop).getUpdateTime());
     }
 
-    /**
-     * 创建锁：使用redis的string类型的setnx，这个命令不允许建立重复的数据，可以实现锁
-     *
-     * @param key
-     * @return
-     */
-    private boolean tryLock(String key) {
-        //因为可能会有某些原因导致锁没有被删除，所以设置有效期将其自动删除
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        //自动拆箱可能会出现空指针，先使用工具
-        return BooleanUtil.isTrue(flag);
-    }
 
     /**
-     * 释放锁
+     * 将缓存穿透封装到一个方法中
+     * 店铺缓存由cacheClient按编码格式读写（可能是二进制），不能再直接读写JSON字符串，交给cacheClient
      *
-     * @param key
+     * @return
      */
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    public Shop queryWithPassThrough(Long id) {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
-     * 利用互斥锁解决缓存击穿
+     * 利用互斥锁解决缓存击穿，同样交给cacheClient，重建锁是lock:shop:{id}
      *
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.从redis中查询店铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        //缓存穿透解决：判断命中的是否是空值
-        if (shopJson != null) {
-            //返回一个错误信息
-//            return Result.fail("店铺信息不存在");
-            return null;
-        }
-
-        //4.实现缓存重构
-        //4.1获取互斥锁
-        String lockKey = "lock:shop" + id;
-        Shop shop = null;
-
-        try {//Thread.sleep()需要抛出异常
-            boolean isLock = tryLock(lockKey);
-            //4.2判断是否获取成功
-            if (!isLock) {
-                //4.3失败，则休眠重试
-                Thread.sleep(50);
-                //递归
-                return queryWithMutex(id);
-            }
-            //4.4成功,根据id查询数据库
-            shop = getById(id);
-
-            //5.不存在，返回错误
-            if (shop == null) {
-                //缓存穿透解决：将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
-            }
-            //6.存在，写入redis,//添加过期时间
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            unLock(lockKey);
-        }
-        //7.返回
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 
@@ -213,66 +151,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @param expireSeconds
      */
     public void saveShop2Redid(Long id, Long expireSeconds) {
-        //1.查询店铺数据
+        //1.查询店铺数据，记录查询耗时，提前刷新时要用
+        long begin = System.currentTimeMillis();
         Shop shop = getById(id);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        //2.封装逻辑过期时间（带随机抖动）并写入redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS,
+                System.currentTimeMillis() - begin);
     }
 
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
      * 利用逻辑过期时间解决缓存击穿
+     * saveShop2Redid通过cacheClient写入（可能是二进制编码），读取也交给cacheClient，按第一个字节选择解码器
      *
      * @param id
      * @return
      */
     public Shop queryWithLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1.从redis查询店铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            //3.
-            return null;
-        }
-        //4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期，z在这个时间之前的是过期的
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.1未过期，直接返回店铺信息
-            return shop;
-        }
-        //5.2已过期，需要缓存重建
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否获取锁成功
-        //注意:获取锁成功应该再次检测redis缓存是否过期，做DoubleCheck。如果存在则无需重建缓存。
-        if (isLock) {
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //重建缓存
-                    this.saveShop2Redid(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
-        }
-
-        //6.4返回过期的商铺信息
-        return shop;
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
 
 
@@ -289,9 +184,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
-        //1.更新数据库
+        //1.更新数据库，查出更新前的数据：类型变了要从原来的GEO集合中删除，只改了部分列时用它补全类型和坐标
+        Shop before = getById(id);
         updateById(shop);
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //删除Redis缓存，同时通知所有节点删除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        //2.发布变更，事务提交之后再删除一次缓存并更新GEO（延迟双删）
+        changeEventSource.publish(RowChange.of(TABLE_SHOP, RowChange.Type.UPDATE, id, before, shop));
 
         return Result.ok();
     }
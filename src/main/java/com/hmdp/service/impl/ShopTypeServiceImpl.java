@@ -1,18 +1,32 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.HttpCacheUtils;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -22,44 +36,105 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //和Spring MVC用同一个ObjectMapper，提前序列化的响应体和直接返回Result时一致
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //当前版本的店铺类型，读的时候不加锁，版本变化时整个替换
+    private volatile ShopTypeSnapshot snapshot;
+    //上次和Redis核对版本号的时间
+    private volatile long lastCheckTime;
+    //同一时间只有一个线程去核对版本号
+    private final AtomicBoolean checking = new AtomicBoolean();
+
+    //订阅版本变化的广播，收到后立即刷新
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            long version = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+            ShopTypeSnapshot current = snapshot;
+            if (current == null || current.getVersion() < version) {
+                refresh();
+            }
+        }, new ChannelTopic(CACHE_SHOP_TYPE_CHANNEL));
+    }
+
     /**
-     * 自己写的，使用Redis中的
      * 返回店铺类型的集合
      * @return
      */
     @Override
     public Result queryTypeList() {
-        String key = "cache:shopType:"+ "all";
-
-        //1.从redis中查询店铺类型缓存
-        String shopTypeJson= stringRedisTemplate.opsForValue().get(key);
+        return Result.ok(getSnapshot().getTypes());
+    }
 
-        //2.判断redis是否存在
-        if(StrUtil.isNotBlank(shopTypeJson)){
-            //3.redis中存在,直接返回,将字符串转换为list集合
-            List<ShopType> shopTypeList = JSONUtil.toList(shopTypeJson, ShopType.class);
-            return Result.ok(shopTypeList);
+    /**
+     * 当前版本的店铺类型，超过检查间隔时顺便核对一次Redis中的版本号，其他线程继续用当前的
+     */
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            return refresh();
         }
-
-
-        //4.redis中不存在，到数据库中查询
-        List<ShopType> typeList = query().list();
-
-        //5.数据库中不存在，返回错误
-        if(typeList==null){
-            return Result.fail("店铺不存在");
+        if (System.currentTimeMillis() - lastCheckTime > CACHE_SHOP_TYPE_CHECK_MILLIS && checking.compareAndSet(false, true)) {
+            try {
+                return refresh();
+            } catch (Exception e) {
+                //Redis不可用时继续用当前的
+                log.error("刷新店铺类型失败", e);
+            } finally {
+                checking.set(false);
+            }
         }
+        return current;
+    }
 
-        //6.数据库中存在，写入redis中
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(typeList));
-
-        //7.返回
-        return Result.ok(typeList);
+    /**
+     * 根据Redis中的版本号刷新，版本没变只更新检查时间
+     */
+    private synchronized ShopTypeSnapshot refresh() {
+        //1.查询版本号
+        String versionStr = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        long version = versionStr == null ? 0 : Long.parseLong(versionStr);
+        lastCheckTime = System.currentTimeMillis();
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && current.getVersion() >= version) {
+            return current;
+        }
+        //2.查询这个版本的列表，Redis中没有再查数据库
+        String key = CACHE_SHOP_TYPE_KEY + version;
+        String shopTypeJson = stringRedisTemplate.opsForValue().get(key);
+        List<ShopType> typeList;
+        if (StrUtil.isNotBlank(shopTypeJson)) {
+            typeList = JSONUtil.toList(shopTypeJson, ShopType.class);
+        } else {
+            //版本号在数据库提交之后才加一，这里读到的数据不会比这个版本旧
+            typeList = query().list();
+            stringRedisTemplate.opsForValue().setIfAbsent(
+                    key, JSONUtil.toJsonStr(typeList), CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
+        }
+        //3.提前序列化响应体，整个替换
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(typeList));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        ShopTypeSnapshot loaded = new ShopTypeSnapshot(version, Collections.unmodifiableList(typeList),
+                body, HttpCacheUtils.etag(DigestUtil.md5Hex(body)));
+        snapshot = loaded;
+        log.info("店铺类型已刷新, version={}, size={}", version, typeList.size());
+        return loaded;
     }
 }
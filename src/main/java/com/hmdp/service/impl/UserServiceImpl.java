@@ -12,7 +12,9 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.InMemoryChangeEventSource;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.RowChange;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 
@@ -33,6 +35,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.CacheInvalidationConsumer.TABLE_USER;
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 
@@ -52,6 +55,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private InMemoryChangeEventSource changeEventSource;
+
     /**
      * 发送验证码
      *
@@ -212,6 +218,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         //保存用户
         save(user);
+        //发布变更，删除这个id可能缓存过的空值
+        changeEventSource.publish(RowChange.of(TABLE_USER, RowChange.Type.INSERT, user.getId(), null, user));
         return user;
     }
 }
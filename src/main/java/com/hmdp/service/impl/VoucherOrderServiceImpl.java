@@ -1,30 +1,61 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.IdGeneratorRouter;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.SegmentedStock;
+import com.hmdp.utils.StripedUserLock;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.*;
 
 /**
  * <p>
@@ -41,115 +72,337 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGeneratorRouter idGeneratorRouter;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SegmentedStock segmentedStock;
+
+    @Resource
+    private SeckillGate seckillGate;
+
+    //创建订单时按用户加锁，本节点内的竞争在本地锁上排队
+    @Resource
+    private StripedUserLock stripedUserLock;
+
+    //事务方法要通过代理调用；消费者启动时还没有请求进来，不能用AopContext获取
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
 
     //以下这段是秒杀优化-异步秒杀
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("claim_orders.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
     }
 
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //异步处理线程池，每个线程是消费者组中的一个消费者
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(SECKILL_ORDER_WORKERS);
+    //定时认领超时未确认的消息
+    private static final ScheduledExecutorService CLAIM_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    //消费者名称的前缀，pid@主机名，每个进程不同
+    private final String consumerPrefix = ManagementFactory.getRuntimeMXBean().getName();
+
+    //应用启动完成后开始消费：先认领上次没处理完的消息，再读取新消息
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOrderConsumers() {
+        createGroup();
+        CLAIM_EXECUTOR.scheduleWithFixedDelay(this::claimPendingOrders,
+                0, SECKILL_ORDER_CLAIM_INTERVAL, TimeUnit.SECONDS);
+        for (int i = 0; i < SECKILL_ORDER_WORKERS; i++) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(consumerPrefix + "-" + i));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        CLAIM_EXECUTOR.shutdownNow();
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+    }
 
-    //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    /**
+     * 创建消费者组，stream不存在时一起创建，组已经存在时忽略
+     */
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
     }
 
     // 用于线程池处理的任务
-// 当初始化完毕后，就会去从对列中去拿信息
+// 当初始化完毕后，就会去消息队列中去拿信息
     private class VoucherOrderHandler implements Runnable {
 
+        private final Consumer consumer;
+
+        private VoucherOrderHandler(String name) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, name);
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    // 1.获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2.创建订单
-                    handleVoucherOrder(voucherOrder);
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 500 BLOCK 2000 STREAMS stream.orders >
+                    //   已经积压的订单一次最多取一批，空闲时一个订单也立即返回
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(SECKILL_ORDER_BATCH_SIZE)
+                                    .block(Duration.ofSeconds(SECKILL_ORDER_BLOCK)),
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+                    // 2.没有消息，继续下一次循环
+                    if (records == null || records.isEmpty()) {
+                        continue;
+                    }
+                    // 3.批量创建订单，提交之后再确认
+                    handleVoucherOrders(records);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
+                    //Redis不可用时不要空转，没有确认的消息之后会被认领
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
             }
         }
     }
 
+    /**
+     * 认领超时没有确认的消息：处理它的节点挂了，或者处理失败了
+     * XAUTOCLAIM会增加投递次数，失败太多次的在处理时转入死信队列
+     */
+    @SuppressWarnings("unchecked")
+    private void claimPendingOrders() {
+        try {
+            String consumer = consumerPrefix + "-claim";
+            String start = "0-0";
+            do {
+                List<Object> result = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                        Collections.singletonList(SECKILL_ORDER_STREAM),
+                        SECKILL_ORDER_GROUP, consumer,
+                        String.valueOf(TimeUnit.SECONDS.toMillis(SECKILL_ORDER_CLAIM_IDLE)),
+                        start, String.valueOf(SECKILL_ORDER_BATCH_SIZE));
+                if (result == null || result.size() < 2) {
+                    return;
+                }
+                start = (String) result.get(0);
+                List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+                for (Object entry : (List<Object>) result.get(1)) {
+                    //消息已经被删除的返回空
+                    if (!(entry instanceof List)) {
+                        continue;
+                    }
+                    List<Object> idAndFields = (List<Object>) entry;
+                    List<Object> fields = (List<Object>) idAndFields.get(1);
+                    Map<Object, Object> values = new HashMap<>(fields.size());
+                    for (int i = 0; i + 1 < fields.size(); i += 2) {
+                        values.put(fields.get(i), fields.get(i + 1));
+                    }
+                    records.add(StreamRecords.newRecord().in(SECKILL_ORDER_STREAM)
+                            .withId((String) idAndFields.get(0)).ofMap(values));
+                }
+                if (!records.isEmpty()) {
+                    log.warn("认领未确认的订单消息, size={}", records.size());
+                    handleVoucherOrders(records);
+                }
+            } while (!"0-0".equals(start));
+        } catch (Exception e) {
+            log.error("认领订单消息异常", e);
+        }
+    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //1.获取用户
-        Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 3.尝试获取锁
-        boolean isLock = redisLock.tryLock();
-        // 4.判断是否获得锁成功
-        if (!isLock) {
-            // 获取锁失败，直接返回失败或者重试
-            log.error("不允许重复下单！");
+    /**
+     * 一个事务创建一批订单，提交之后确认；失败时逐个重试，只有失败的订单留在待确认列表中等待重新投递
+     */
+    private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+        //1.解析订单，格式错误的消息永远处理不了，直接转入死信队列
+        Map<RecordId, VoucherOrder> orders = new LinkedHashMap<>(records.size() * 2);
+        Map<RecordId, Map<Object, Object>> values = new HashMap<>(records.size() * 2);
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                orders.put(record.getId(), toVoucherOrder(record.getValue()));
+                values.put(record.getId(), record.getValue());
+            } catch (Exception e) {
+                deadLetter(record.getId(), record.getValue(), e);
+            }
+        }
+        if (orders.isEmpty()) {
             return;
         }
+        //2.整批创建，提交之后确认 XACK stream.orders g1 id ...
+        //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
+        //  整批用户一把分段锁，事务提交之后才释放：重放的订单和原来的、认领的和还在处理的不会同时检查和写入
+        Set<Long> userIds = new HashSet<>();
+        for (VoucherOrder order : orders.values()) {
+            userIds.add(order.getUserId());
+        }
         try {
-            //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            redisLock.unlock();
+            ILock lock = stripedUserLock.get(userIds);
+            if (!lock.lock(ORDER_LOCK_WAIT, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("获取订单锁超时, size=" + userIds.size());
+            }
+            try {
+                proxy.createVoucherOrders(new ArrayList<>(orders.values()));
+            } finally {
+                lock.unlock();
+            }
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                    orders.keySet().toArray(new RecordId[0]));
+            return;
+        } catch (InterruptedException e) {
+            //节点正在关闭，没有确认的消息之后会被认领
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            log.error("批量创建订单失败，逐个重试, size={}", orders.size(), e);
+        }
+        //3.逐个重试，每个用户单独加锁
+        for (Map.Entry<RecordId, VoucherOrder> entry : orders.entrySet()) {
+            try {
+                ILock lock = stripedUserLock.get(entry.getValue().getUserId());
+                if (!lock.lock(ORDER_LOCK_WAIT, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("获取订单锁超时, userId=" + entry.getValue().getUserId());
+                }
+                try {
+                    proxy.createVoucherOrder(entry.getValue());
+                } catch (DuplicateKeyException e) {
+                    //唯一索引(user_id, voucher_id)：重复投递或者被认领的消息，订单已经创建过了，直接确认
+                    log.warn("订单已经存在, userId={}, voucherId={}",
+                            entry.getValue().getUserId(), entry.getValue().getVoucherId());
+                } finally {
+                    lock.unlock();
+                }
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, entry.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("创建订单失败, orderId={}", entry.getValue().getId(), e);
+                //投递次数太多的转入死信队列，其他的等待超时后被认领重试
+                if (deliveryCount(entry.getKey()) >= SECKILL_ORDER_MAX_DELIVERIES) {
+                    deadLetter(entry.getKey(), values.get(entry.getKey()), e);
+                }
+            }
         }
     }
 
-    //a阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks =new ArrayBlockingQueue<>(1024 * 1024);
+    private static VoucherOrder toVoucherOrder(Map<Object, Object> value) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), false);
+        if (voucherOrder.getId() == null || voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null) {
+            throw new IllegalArgumentException("订单消息缺少字段: " + value);
+        }
+        return voucherOrder;
+    }
 
-    private IVoucherOrderService proxy;
+    /**
+     * 消息被投递的次数 XPENDING stream.orders g1 id id 1
+     */
+    private long deliveryCount(RecordId id) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                Range.closed(id.getValue(), id.getValue()), 1L);
+        return pending.isEmpty() ? 0 : pending.get(0).getTotalDeliveryCount();
+    }
+
+    /**
+     * 写入死信队列，带上原消息的id和失败原因，再确认原消息
+     */
+    private void deadLetter(RecordId id, Map<?, ?> values, Exception e) {
+        Map<String, String> fields = new HashMap<>();
+        values.forEach((k, v) -> fields.put(String.valueOf(k), String.valueOf(v)));
+        fields.put("sourceId", id.getValue());
+        fields.put("error", String.valueOf(e.getMessage()));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, fields);
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, id);
+        log.error("订单消息转入死信队列, id={}", id, e);
+    }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
-
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-        int r = result.intValue();
-        // 2.判断结果是否为0
-        if (r != 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        // 1.本节点已知卖完的直接返回，不再访问Redis
+        if (seckillGate.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 2.超出准入令牌的请求直接拒绝
+        if (!seckillGate.tryAcquire(voucherId)) {
+            return Result.fail("活动太火爆，请稍后再试");
         }
-        // 保存阻塞队列
-        VoucherOrder voucherOrder = new VoucherOrder();
-        // 2.3.订单id
 
-        voucherOrder.setId(orderId);
-        // 2.4.用户id
-        voucherOrder.setUserId(userId);
-        // 2.5.代金券id
-        voucherOrder.setVoucherId(voucherId);
-        // 2.6.放入阻塞队列
-        orderTasks.add(voucherOrder);
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        // 3.生成订单id，雪花id不访问Redis，没有购买资格时丢弃
+        long orderId = idGeneratorRouter.nextId("order");
+        // 4.判断秒杀时间和购买资格：分段库存的秒杀券在用户所属的段中判断，其他的在lua脚本中一次判断并写入消息队列
+        int r;
+        long now = System.currentTimeMillis();
+        int segments = segmentedStock.getSegments(voucherId);
+        if (segments > 0) {
+            r = seckillGate.checkWindow(voucherId, now);
+            if (r == SegmentedStock.SUCCESS) {
+                r = segmentedStock.trySeckill(voucherId, userId, segments);
+            }
+        } else {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(now), String.valueOf(orderId)
+            );
+            r = result.intValue();
+        }
+        // 5.判断结果是否为0，不为0代表没有购买资格
+        switch (r) {
+            case SegmentedStock.SUCCESS:
+                break;
+            case SegmentedStock.SOLD_OUT:
+                // 卖完的记下来并通知其他节点
+                seckillGate.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            case SegmentedStock.DUPLICATE:
+                return Result.fail("不能重复下单");
+            case SegmentedStock.NOT_STARTED:
+                return Result.fail("秒杀尚未开始");
+            case SegmentedStock.ENDED:
+                return Result.fail("秒杀已经结束！");
+            default:
+                return Result.fail("秒杀失败");
+        }
 
-        // 3.返回订单id
+        // 6.分段库存的秒杀券在这里写入消息队列：各段的key和stream.orders不在集群的同一个槽，不能放进同一个脚本；
+        //   扣减成功之后节点挂了没有写入的，由SeckillReconciler发现并重放
+        if (segments > 0) {
+            sendOrder(userId, voucherId, orderId);
+        }
+        // 7.返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 分段库存的订单写入消息队列 XADD stream.orders * userId .. voucherId .. id ..
+     */
+    private void sendOrder(Long userId, Long voucherId, long orderId) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, order);
+    }
+
 
 
     @Transactional
@@ -177,6 +430,51 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         save(voucherOrder);
     }
 
+    /**
+     * 批量创建订单：每张优惠券一次查询去重、一条UPDATE扣减库存，所有订单一条INSERT，在同一个事务中
+     * 库存不足时抛出异常，整批回滚，由调用方逐个重试
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> orders) {
+        // 1.按优惠券分组，同一个用户同一张优惠券只保留一个订单
+        //按优惠券id排序，多个消费者同时扣减库存时按相同的顺序加行锁，不会死锁
+        Map<Long, Map<Long, VoucherOrder>> ordersByVoucher = new TreeMap<>();
+        for (VoucherOrder order : orders) {
+            ordersByVoucher.computeIfAbsent(order.getVoucherId(), k -> new LinkedHashMap<>())
+                    .putIfAbsent(order.getUserId(), order);
+        }
+        List<VoucherOrder> toSave = new ArrayList<>(orders.size());
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            Map<Long, VoucherOrder> ordersByUser = entry.getValue();
+            // 2.一次查询这批用户中已经购买过的
+            List<Object> orderedUserIds = listObjs(new QueryWrapper<VoucherOrder>()
+                    .select("user_id").eq("voucher_id", voucherId).in("user_id", ordersByUser.keySet()));
+            for (Object userId : orderedUserIds) {
+                log.error("用户已经购买过了, userId={}", userId);
+                ordersByUser.remove(((Number) userId).longValue());
+            }
+            if (ordersByUser.isEmpty()) {
+                continue;
+            }
+            // 3.一条UPDATE扣减这张优惠券的库存
+            int count = ordersByUser.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count) // set stock = stock - count
+                    .eq("voucher_id", voucherId).ge("stock", count) // where id = ? and stock >= count
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足, voucherId=" + voucherId + ", count=" + count);
+            }
+            toSave.addAll(ordersByUser.values());
+        }
+        // 4.一条INSERT写入所有订单
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
+        }
+    }
+
 
     /*
     //以下是优惠券秒杀功能实现，使用了redission锁
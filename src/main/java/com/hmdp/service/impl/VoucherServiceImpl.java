@@ -7,6 +7,8 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillGate;
+import com.hmdp.utils.SegmentedStock;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,6 +16,7 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_INFO_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -33,6 +36,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SegmentedStock segmentedStock;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -50,10 +56,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        //段数也保存到数据库，Redis清空后预热时按它重建分段库存
+        boolean segmented = voucher.getStockSegments() != null && voucher.getStockSegments() > 1;
+        seckillVoucher.setStockSegments(segmented ? voucher.getStockSegments() : 0);
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 秒杀时间保存到Redis中，秒杀时在lua脚本中判断，不再查询数据库
+        stringRedisTemplate.opsForHash().putAll(SECKILL_INFO_KEY + voucher.getId(),
+                SeckillGate.info(voucher.getBeginTime(), voucher.getEndTime()));
 
+        // 超热门的秒杀券，库存分段保存到Redis中
+        if (segmented) {
+            segmentedStock.init(voucher.getId(), voucher.getStock(), voucher.getStockSegments());
+            return;
+        }
         // 保存秒杀库存到Redis中,
         //SECKILL_STOCK_KEY 这个变量定义在RedisConstans中
         //private static final String SECKILL_STOCK_KEY ="seckill:stock:"
@@ -0,0 +1,381 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制编码，只支持几个热点实体，按字段顺序直接写值，不写字段名，不用反射
+ * 格式：[版本号][类型][字段...]，数字用变长编码，可以为null的字段先写一个标记
+ * 实体新增或修改字段时要升级版本号，旧版本的数据解码返回null，按缓存未命中重新加载
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte TYPE_NULL = -1;
+    private static final byte TYPE_LOGICAL = 0;
+    private static final byte TYPE_SHOP = 1;
+    private static final byte TYPE_SHOP_TYPE = 2;
+    private static final byte TYPE_BLOG = 3;
+    private static final byte TYPE_USER_DTO = 4;
+
+    private final Map<Class<?>, Serializer<?>> serializers = new HashMap<>();
+
+    public BinaryCacheCodec() {
+        register(Shop.class, TYPE_SHOP, BinaryCacheCodec::writeShop, BinaryCacheCodec::readShop);
+        register(ShopType.class, TYPE_SHOP_TYPE, BinaryCacheCodec::writeShopType, BinaryCacheCodec::readShopType);
+        register(Blog.class, TYPE_BLOG, BinaryCacheCodec::writeBlog, BinaryCacheCodec::readBlog);
+        register(UserDTO.class, TYPE_USER_DTO, BinaryCacheCodec::writeUser, BinaryCacheCodec::readUser);
+    }
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return serializers.containsKey(type);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        out.writeByte(VERSION);
+        writeValue(value, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Input in = new Input(bytes);
+        if (in.readByte() != VERSION) {
+            return null;
+        }
+        return readValue(in, type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        Output out = new Output();
+        out.writeByte(VERSION);
+        out.writeByte(TYPE_LOGICAL);
+        out.writeTime(redisData.getExpireTime());
+        out.writeLong(redisData.getDelta());
+        writeValue(redisData.getData(), out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        Input in = new Input(bytes);
+        if (in.readByte() != VERSION || in.readByte() != TYPE_LOGICAL) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(in.readTime());
+        redisData.setDelta(in.readLong());
+        redisData.setData(readValue(in, type));
+        return redisData;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(Object value, Output out) {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+            return;
+        }
+        Serializer<Object> serializer = (Serializer<Object>) serializers.get(value.getClass());
+        out.writeByte(serializer.type);
+        serializer.writer.write(value, out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T readValue(Input in, Class<T> type) {
+        Serializer<T> serializer = (Serializer<T>) serializers.get(type);
+        if (serializer == null || in.readByte() != serializer.type) {
+            return null;
+        }
+        return serializer.reader.read(in);
+    }
+
+    private <T> void register(Class<T> type, byte typeId, Writer<T> writer, Reader<T> reader) {
+        serializers.put(type, new Serializer<>(typeId, writer, reader));
+    }
+
+    private static void writeShop(Shop shop, Output out) {
+        out.writeLong(shop.getId());
+        out.writeString(shop.getName());
+        out.writeLong(shop.getTypeId());
+        out.writeString(shop.getImages());
+        out.writeString(shop.getArea());
+        out.writeString(shop.getAddress());
+        out.writeDouble(shop.getX());
+        out.writeDouble(shop.getY());
+        out.writeLong(shop.getAvgPrice());
+        out.writeInt(shop.getSold());
+        out.writeInt(shop.getComments());
+        out.writeInt(shop.getScore());
+        out.writeString(shop.getOpenHours());
+        out.writeTime(shop.getCreateTime());
+        out.writeTime(shop.getUpdateTime());
+    }
+
+    private static Shop readShop(Input in) {
+        return new Shop()
+                .setId(in.readLong())
+                .setName(in.readString())
+                .setTypeId(in.readLong())
+                .setImages(in.readString())
+                .setArea(in.readString())
+                .setAddress(in.readString())
+                .setX(in.readDouble())
+                .setY(in.readDouble())
+                .setAvgPrice(in.readLong())
+                .setSold(in.readInt())
+                .setComments(in.readInt())
+                .setScore(in.readInt())
+                .setOpenHours(in.readString())
+                .setCreateTime(in.readTime())
+                .setUpdateTime(in.readTime());
+    }
+
+    private static void writeShopType(ShopType shopType, Output out) {
+        out.writeLong(shopType.getId());
+        out.writeString(shopType.getName());
+        out.writeString(shopType.getIcon());
+        out.writeInt(shopType.getSort());
+        out.writeTime(shopType.getCreateTime());
+        out.writeTime(shopType.getUpdateTime());
+    }
+
+    private static ShopType readShopType(Input in) {
+        return new ShopType()
+                .setId(in.readLong())
+                .setName(in.readString())
+                .setIcon(in.readString())
+                .setSort(in.readInt())
+                .setCreateTime(in.readTime())
+                .setUpdateTime(in.readTime());
+    }
+
+    //icon、name、isLike不是表中的字段，和当前登录用户有关，不缓存
+    private static void writeBlog(Blog blog, Output out) {
+        out.writeLong(blog.getId());
+        out.writeLong(blog.getShopId());
+        out.writeLong(blog.getUserId());
+        out.writeString(blog.getTitle());
+        out.writeString(blog.getImages());
+        out.writeString(blog.getContent());
+        out.writeInt(blog.getLiked());
+        out.writeInt(blog.getComments());
+        out.writeTime(blog.getCreateTime());
+        out.writeTime(blog.getUpdateTime());
+    }
+
+    private static Blog readBlog(Input in) {
+        return new Blog()
+                .setId(in.readLong())
+                .setShopId(in.readLong())
+                .setUserId(in.readLong())
+                .setTitle(in.readString())
+                .setImages(in.readString())
+                .setContent(in.readString())
+                .setLiked(in.readInt())
+                .setComments(in.readInt())
+                .setCreateTime(in.readTime())
+                .setUpdateTime(in.readTime());
+    }
+
+    private static void writeUser(UserDTO user, Output out) {
+        out.writeLong(user.getId());
+        out.writeString(user.getNickName());
+        out.writeString(user.getIcon());
+    }
+
+    private static UserDTO readUser(Input in) {
+        UserDTO user = new UserDTO();
+        user.setId(in.readLong());
+        user.setNickName(in.readString());
+        user.setIcon(in.readString());
+        return user;
+    }
+
+    private interface Writer<T> {
+        void write(T value, Output out);
+    }
+
+    private interface Reader<T> {
+        T read(Input in);
+    }
+
+    private static class Serializer<T> {
+        private final byte type;
+        private final Writer<T> writer;
+        private final Reader<T> reader;
+
+        private Serializer(byte type, Writer<T> writer, Reader<T> reader) {
+            this.type = type;
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * 写入工具，数字用zigzag变长编码，null字段写一个0标记
+     */
+    private static class Output {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+
+        void writeByte(int b) {
+            buf.write(b);
+        }
+
+        void writeLong(Long value) {
+            if (value == null) {
+                buf.write(0);
+                return;
+            }
+            buf.write(1);
+            writeVarLong(value);
+        }
+
+        void writeInt(Integer value) {
+            writeLong(value == null ? null : value.longValue());
+        }
+
+        void writeDouble(Double value) {
+            if (value == null) {
+                buf.write(0);
+                return;
+            }
+            buf.write(1);
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 56; i >= 0; i -= 8) {
+                buf.write((int) (bits >>> i));
+            }
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            buf.write(bytes, 0, bytes.length);
+        }
+
+        void writeTime(LocalDateTime time) {
+            if (time == null) {
+                buf.write(0);
+                return;
+            }
+            buf.write(1);
+            writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(time.getNano());
+        }
+
+        private void writeVarLong(long value) {
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                buf.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buf.write((int) v);
+        }
+
+        byte[] toByteArray() {
+            return buf.toByteArray();
+        }
+    }
+
+    /**
+     * 读取工具，每次读取前检查剩余长度，数据被截断或者损坏时抛出IllegalArgumentException，由调用方按未命中处理
+     */
+    private static class Input {
+        private final byte[] bytes;
+        private int pos;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private void require(int n) {
+            if (n < 0 || n > bytes.length - pos) {
+                throw new IllegalArgumentException("缓存数据不完整, length=" + bytes.length + ", pos=" + pos + ", need=" + n);
+            }
+        }
+
+        byte readByte() {
+            require(1);
+            return bytes[pos++];
+        }
+
+        Long readLong() {
+            return readByte() == 0 ? null : readVarLong();
+        }
+
+        Integer readInt() {
+            Long value = readLong();
+            return value == null ? null : value.intValue();
+        }
+
+        Double readDouble() {
+            if (readByte() == 0) {
+                return null;
+            }
+            require(8);
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (bytes[pos++] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        String readString() {
+            long length = readVarLong();
+            if (length == -1) {
+                return null;
+            }
+            int n = length < 0 || length > Integer.MAX_VALUE ? -1 : (int) length;
+            require(n);
+            String value = new String(bytes, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return value;
+        }
+
+        LocalDateTime readTime() {
+            if (readByte() == 0) {
+                return null;
+            }
+            long second = readVarLong();
+            int nano = (int) readVarLong();
+            return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 63) {
+                    throw new IllegalArgumentException("缓存数据损坏, 变长整数过长, pos=" + pos);
+                }
+                b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
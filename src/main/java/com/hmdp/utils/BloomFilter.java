@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * 布隆过滤器，解决缓存穿透：判断不存在的id一定不存在，直接返回，不查Redis也不查数据库
+ * 默认是进程内的位数组，也可以用Redis的bitmap存储，多个节点共享一份
+ * 注意：布隆过滤器不能删除元素，数据删除后对应的位还在，只是多一次误判，重建之后就没有了
+ */
+public class BloomFilter {
+
+    private static final String TMP_SUFFIX = ":tmp";
+
+    private final int numBits;
+    private final int numHashes;
+    //本地模式的位数组，重建时整体替换
+    private volatile AtomicLongArray bits;
+    //本地模式正在重建的位数组，重建期间put要同时写入
+    private AtomicLongArray building;
+    //第一次重建完成之前不拦截任何查询
+    private volatile boolean ready;
+
+    //共享模式下Redis中的key，为null表示本地模式
+    private final String redisKey;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //被拦截的查询次数
+    private final LongAdder rejectCount = new LongAdder();
+
+    private BloomFilter(long expectedInsertions, double fpp, String redisKey, StringRedisTemplate stringRedisTemplate) {
+        //根据预计数量和误判率计算位数组长度和哈希函数个数
+        long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((numBits + 63) >>> 6);
+        this.redisKey = redisKey;
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 创建进程内的布隆过滤器
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 误判率
+     */
+    public static BloomFilter local(long expectedInsertions, double fpp) {
+        return new BloomFilter(expectedInsertions, fpp, null, null);
+    }
+
+    /**
+     * 创建基于Redis bitmap的布隆过滤器，所有节点共享
+     * @param redisKey bitmap的key
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 误判率
+     */
+    public static BloomFilter shared(String redisKey, long expectedInsertions, double fpp,
+                                     StringRedisTemplate stringRedisTemplate) {
+        return new BloomFilter(expectedInsertions, fpp, redisKey, stringRedisTemplate);
+    }
+
+    public synchronized void put(Object id) {
+        long[] offsets = offsets(id);
+        if (redisKey != null) {
+            //临时key也写一份，避免其他节点正在重建时rename把新写入的位覆盖掉
+            setBits(Collections.singletonList(offsets), redisKey, redisKey + TMP_SUFFIX);
+            return;
+        }
+        for (long offset : offsets) {
+            setBit(bits, offset);
+            if (building != null) {
+                setBit(building, offset);
+            }
+        }
+    }
+
+    /**
+     * 判断id是否可能存在，还没有重建完成时都认为存在
+     * @return false代表一定不存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        long[] offsets = offsets(id);
+        boolean contain = redisKey != null ? getBits(offsets) : getBits(bits, offsets);
+        if (!contain) {
+            rejectCount.increment();
+        }
+        return contain;
+    }
+
+    /**
+     * 分页读取全部id重建，完成后整体替换，不会把所有id一次读到内存，重建过程中不影响查询
+     * 重建期间put的id同时写入新旧两份，替换时不会丢；同一时间只能有一个线程重建
+     * @param nextPage 参数是上一页最后一个id（第一页是0），返回按id升序的下一页，返回空表示读完了
+     * @return 重建用的id数量
+     */
+    public int rebuild(LongFunction<List<Long>> nextPage) {
+        //1.准备新的位数组：共享模式先写到临时key，最后rename，保证切换是原子的
+        String tmpKey = redisKey + TMP_SUFFIX;
+        if (redisKey != null) {
+            stringRedisTemplate.delete(tmpKey);
+        } else {
+            synchronized (this) {
+                building = new AtomicLongArray(bits.length());
+            }
+        }
+        //2.按页写入，共享模式每页一次管道
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            List<Long> ids = nextPage.apply(lastId);
+            if (ids.isEmpty()) {
+                break;
+            }
+            List<long[]> batch = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                batch.add(offsets(id));
+            }
+            if (redisKey != null) {
+                setBits(batch, tmpKey);
+            } else {
+                for (long[] offsets : batch) {
+                    for (long offset : offsets) {
+                        setBit(building, offset);
+                    }
+                }
+            }
+            count += ids.size();
+            lastId = ids.get(ids.size() - 1);
+        }
+        //3.替换
+        if (redisKey != null) {
+            if (count == 0) {
+                stringRedisTemplate.delete(redisKey);
+            } else {
+                stringRedisTemplate.rename(tmpKey, redisKey);
+            }
+        } else {
+            synchronized (this) {
+                bits = building;
+                building = null;
+            }
+        }
+        ready = true;
+        return count;
+    }
+
+    /**
+     * 是否存在Redis中所有节点共享
+     */
+    public boolean isShared() {
+        return redisKey != null;
+    }
+
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+
+    /**
+     * 用128位murmur哈希的高低两部分组合出k个位置
+     */
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(id.toString().getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static void setBit(AtomicLongArray array, long offset) {
+        int index = (int) (offset >>> 6);
+        long mask = 1L << offset;
+        long old;
+        do {
+            old = array.get(index);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!array.compareAndSet(index, old, old | mask));
+    }
+
+    private static boolean getBits(AtomicLongArray array, long[] offsets) {
+        for (long offset : offsets) {
+            if ((array.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setBits(List<long[]> offsetsList, String... keys) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                for (long[] offsets : offsetsList) {
+                    for (long offset : offsets) {
+                        conn.setBit(key, offset, true);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private boolean getBits(long[] offsets) {
+        //一次管道把k个位都查回来
+        List<Object> results = stringRedisTemplate.executePipelined(
+                (RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (long offset : offsets) {
+                        conn.getBit(redisKey, offset);
+                    }
+                    return null;
+                });
+        for (Object result : results) {
+            if (!Boolean.TRUE.equals(result)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
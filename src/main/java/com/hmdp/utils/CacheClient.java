@@ -1,19 +1,41 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -24,27 +46,406 @@ import static com.hmdp.utils.RedisConstants.*;
 @Slf4j
 @Component
 public class CacheClient {
+    //旧版本的空值，还在有效期内的照样认
+    private static final byte[] EMPTY = new byte[0];
+
     private final StringRedisTemplate stringRedisTemplate;
-    //创建线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //缓存的值是二进制的，用byte[]的模板读写
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+    //JSON编码兼容旧数据，二进制编码更小更快
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec binaryCodec = new BinaryCacheCodec();
+    //缓存重建的线程池，和其他需要后台重建缓存的地方共用
+    private final CacheRebuildExecutor rebuildExecutor;
+    //延迟双删的线程
+    private static final ScheduledExecutorService DELAYED_DELETE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    //本地一级缓存，按key前缀配置，key是前缀
+    private final Map<String, LocalCache<Object>> localCaches = new ConcurrentHashMap<>();
+    //布隆过滤器，按key前缀配置
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    //记录不存在的id，代替空值缓存，按key前缀创建
+    private final Map<String, MissSet> missSets = new ConcurrentHashMap<>();
+    //本节点正在从数据库加载的key，同一个key的并发请求共享同一个结果
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+    //等待其他节点重建缓存的key
+    private final Map<String, CompletableFuture<Void>> rebuildWaiters = new ConcurrentHashMap<>();
+    //热点key探测，访问频率超过阈值的key在本地保存一份Redis中的原始值，分摊单个Redis分片的压力
+    private final HotKeyDetector hotKeyDetector = new HotKeyDetector(HOT_KEY_WINDOW_COUNT, HOT_KEY_WINDOW_MILLIS,
+            HOT_KEY_SAMPLE_RATE, HOT_KEY_THRESHOLD, HOT_KEY_MAX);
+    //热点key的本地副本，有效期很短，取出来之后每次都重新解码，调用方修改对象不会互相影响
+    private final LocalCache<Object> hotKeyReplicas = new LocalCache<>(HOT_KEY_MAX, HOT_KEY_REPLICA_TTL, TimeUnit.SECONDS);
+    //监控指标
+    private final CacheMetrics metrics;
 
     //用构造方法注入
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer, MeterRegistry meterRegistry,
+                       CacheRebuildExecutor rebuildExecutor){
         this.stringRedisTemplate=stringRedisTemplate;
+        this.cacheRedisTemplate=cacheRedisTemplate;
+        this.rebuildExecutor = rebuildExecutor;
+        this.metrics = new CacheMetrics(meterRegistry);
+        metrics.bindLocalCache("replica", "all", hotKeyReplicas);
+        //订阅缓存失效的广播，其他节点删除缓存时，本节点也删除本地缓存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //订阅缓存重建完成的广播，唤醒等待互斥锁的线程
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onRebuilt(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_REBUILT_CHANNEL));
+        //订阅布隆过滤器新增id的广播，其他节点新增的数据本节点也能查到
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onBloomAdded(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    /**
+     * 给某个key前缀开启本地一级缓存
+     * @param keyPrefix key前缀，例如cache:shop:
+     * @param maximumSize 最多缓存多少条
+     * @param ttl 本地缓存的有效期，要比较短，广播消息丢失时靠它兜底
+     * @param unit 时间单位
+     */
+    public void enableLocalCache(String keyPrefix, int maximumSize, long ttl, TimeUnit unit) {
+        LocalCache<Object> localCache = new LocalCache<>(maximumSize, ttl, unit);
+        localCaches.put(keyPrefix, localCache);
+        metrics.bindLocalCache("local", keyPrefix, localCache);
+    }
+
+    public LocalCache<Object> getLocalCache(String keyPrefix) {
+        return localCaches.get(keyPrefix);
+    }
+
+    /**
+     * 给某个key前缀注册布隆过滤器，由CacheWarmUpRunner用数据库中已有的id分页初始化，初始化完成之前不拦截
+     * 先注册再初始化，初始化期间新增的id也能加入
+     * @param keyPrefix key前缀
+     * @param redisKey 共享模式下bitmap的key
+     */
+    public BloomFilter registerBloomFilter(String keyPrefix, String redisKey) {
+        BloomFilter bloomFilter = BLOOM_SHARED
+                ? BloomFilter.shared(redisKey, BLOOM_EXPECTED_INSERTIONS, BLOOM_FPP, stringRedisTemplate)
+                : BloomFilter.local(BLOOM_EXPECTED_INSERTIONS, BLOOM_FPP);
+        bloomFilters.put(keyPrefix, bloomFilter);
+        metrics.bindBloomFilter(keyPrefix, bloomFilter);
+        return bloomFilter;
+    }
+
+    public BloomFilter getBloomFilter(String keyPrefix) {
+        return bloomFilters.get(keyPrefix);
+    }
+
+    /**
+     * 新增数据后要把id加入布隆过滤器，否则会被误拦截
+     * 本地模式下每个节点各自一份，广播给所有节点都加入
+     */
+    public void addToBloomFilter(String keyPrefix, Object id) {
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null) {
+            bloomFilter.put(id);
+            if (!bloomFilter.isShared()) {
+                stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, keyPrefix + id);
+            }
+        }
+    }
+
+    /**
+     * 收到其他节点新增id的广播，本节点加入；自己发出的也会收到，重复加入没有影响
+     */
+    private void onBloomAdded(String key) {
+        String keyPrefix = prefixOf(key);
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (bloomFilter != null && !bloomFilter.isShared()) {
+            bloomFilter.put(key.substring(keyPrefix.length()));
+        }
+    }
+
+    /**
+     * 判断id是否可能存在，没有配置布隆过滤器时认为存在
+     * @return false代表一定不存在
+     */
+    public boolean mightExist(String keyPrefix, Object id) {
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    /**
+     * 某个key前缀的不存在id集合
+     */
+    public MissSet getMissSet(String keyPrefix) {
+        return missSets.computeIfAbsent(keyPrefix, prefix -> {
+            MissSet missSet = new MissSet(prefix, stringRedisTemplate);
+            metrics.bindLocalCache("miss", prefix, missSet.getMirror());
+            return missSet;
+        });
+    }
+
+    /**
+     * 缓存的key都是 前缀+id，前缀以冒号结尾
+     */
+    private static String prefixOf(String key) {
+        return key.substring(0, key.lastIndexOf(':') + 1);
+    }
+
+    /**
+     * 删除缓存：先删Redis，再广播让所有节点删除本地缓存
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        removeMiss(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除缓存，一次DEL，再用管道广播每个key
+     * @param keys
+     */
+    public void deleteBatch(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(this::removeMiss);
+        keys.forEach(this::evictLocal);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.publish(CACHE_INVALIDATE_CHANNEL, key);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 延迟双删：过一段时间再删一次
+     * 删除缓存之后、数据库提交之前，其他线程可能把旧数据重新写入缓存，第二次删除把它清掉
+     * @param keys
+     * @param delay 要大于一次读数据库并写缓存的时间
+     */
+    public void deleteLater(Collection<String> keys, long delay, TimeUnit unit) {
+        DELAYED_DELETE_EXECUTOR.schedule(() -> {
+            try {
+                deleteBatch(keys);
+            } catch (Exception e) {
+                log.error("延迟删除缓存失败, keys={}", keys, e);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * 数据可能新增了，从不存在的id中删除
+     */
+    private void removeMiss(String key) {
+        String prefix = prefixOf(key);
+        if (!prefix.isEmpty()) {
+            getMissSet(prefix).remove(key.substring(prefix.length()));
+        }
+    }
+
+    /**
+     * 只删除本节点的本地缓存
+     * @param key
+     */
+    public void evictLocal(String key) {
+        hotKeyReplicas.invalidate(key);
+        MissSet missSet = missSets.get(prefixOf(key));
+        if (missSet != null) {
+            missSet.removeLocal(key.substring(missSet.getKeyPrefix().length()));
+        }
+        for (Map.Entry<String, LocalCache<Object>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * 当前的热点key和估算的访问次数
+     */
+    public Map<String, Long> getHotKeys() {
+        return hotKeyDetector.getHotKeys();
+    }
+
+    public LocalCache<Object> getHotKeyReplicas() {
+        return hotKeyReplicas;
+    }
+
+    /**
+     * 查询Redis中的缓存，热点key优先从本地副本中取
+     */
+    private byte[] getBytes(String key) {
+        boolean hot = hotKeyDetector.record(key);
+        if (hot) {
+            byte[] replica = (byte[]) hotKeyReplicas.get(key);
+            if (replica != null) {
+                return replica;
+            }
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (hot && bytes != null) {
+            hotKeyReplicas.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * 查询字符串类型的缓存，热点key优先从本地副本中取
+     */
+    public String getString(String key) {
+        boolean hot = hotKeyDetector.record(key);
+        if (hot) {
+            String replica = (String) hotKeyReplicas.get(key);
+            if (replica != null) {
+                return replica;
+            }
+        }
+        String value = stringRedisTemplate.opsForValue().get(key);
+        if (hot && value != null) {
+            hotKeyReplicas.put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 查询sorted set中成员的分数，热点的sorted set不太大时整个复制到本地
+     * @return 成员不存在返回null
+     */
+    @SuppressWarnings("unchecked")
+    public Double zScore(String key, String member) {
+        if (hotKeyDetector.record(key)) {
+            Object replica = hotKeyReplicas.get(key);
+            if (replica == null) {
+                replica = loadZSetReplica(key);
+                hotKeyReplicas.put(key, replica);
+            }
+            if (replica instanceof Map) {
+                return ((Map<String, Double>) replica).get(member);
+            }
+        }
+        return stringRedisTemplate.opsForZSet().score(key, member);
+    }
+
+    /**
+     * 读取整个sorted set，成员太多时不复制，返回一个标记，在副本有效期内不再重复判断
+     */
+    private Object loadZSetReplica(String key) {
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        if (size == null || size > HOT_KEY_ZSET_MAX_SIZE) {
+            return Boolean.FALSE;
+        }
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet().rangeWithScores(key, 0, -1);
+        Map<String, Double> scores = new HashMap<>(tuples == null ? 0 : tuples.size() * 2);
+        if (tuples != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                scores.put(tuple.getValue(), tuple.getScore());
+            }
+        }
+        return scores;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R getLocal(String keyPrefix, String key) {
+        LocalCache<Object> localCache = localCaches.get(keyPrefix);
+        return localCache == null ? null : (R) localCache.get(key);
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        LocalCache<Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null && value != null) {
+            localCache.put(key, value);
+        }
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        //过期时间加上随机抖动，避免同一批写入的key同时过期
+        cacheRedisTemplate.opsForValue().set(key, encode(value), withJitter(time, unit), TimeUnit.MILLISECONDS);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 写入逻辑过期的缓存
+     * @param delta 重建这条缓存花费的时间（毫秒），提前刷新时用来估算要提前多久
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta) {
         // 设置逻辑过期
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        //传入的参数转化为秒
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        //过期时间加上随机抖动，避免预热时写入的热点key同时过期
+        redisData.setExpireTime(LocalDateTime.now().plus(withJitter(time, unit), ChronoUnit.MILLIS));
+        redisData.setDelta(delta);
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, encodeLogical(redisData));
+    }
+
+    /**
+     * 编码：配置了二进制编码并且支持这个类型时用二进制，否则用JSON
+     */
+    private byte[] encode(Object value) {
+        CacheCodec codec = CACHE_BINARY_CODEC && binaryCodec.supports(value.getClass()) ? binaryCodec : jsonCodec;
+        return codec.encode(value);
+    }
+
+    private byte[] encodeLogical(RedisData redisData) {
+        Object data = redisData.getData();
+        CacheCodec codec = CACHE_BINARY_CODEC && (data == null || binaryCodec.supports(data.getClass()))
+                ? binaryCodec : jsonCodec;
+        return codec.encodeLogical(redisData);
+    }
+
+    /**
+     * 解码：根据第一个字节选择解码器，新旧两种格式可以同时存在
+     * 当前版本的二进制用binaryCodec，'{'、'['、'"'开头的是JSON；其他版本号（升级前后、其他节点写入的）按未命中处理
+     * @return 格式不认识或者数据损坏时返回null，重新加载
+     */
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        CacheCodec codec = codecOf(bytes);
+        if (codec == null) {
+            return null;
+        }
+        try {
+            return codec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存解码失败，按未命中处理, type={}", type.getSimpleName(), e);
+            return null;
+        }
+    }
+
+    private <R> RedisData decodeLogical(byte[] bytes, Class<R> type) {
+        CacheCodec codec = codecOf(bytes);
+        if (codec == null) {
+            return null;
+        }
+        try {
+            RedisData redisData = codec.decodeLogical(bytes, type);
+            return redisData == null || redisData.getExpireTime() == null ? null : redisData;
+        } catch (RuntimeException e) {
+            log.warn("缓存解码失败，按未命中处理, type={}", type.getSimpleName(), e);
+            return null;
+        }
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        byte first = bytes[0];
+        if (first == binaryCodec.version()) {
+            return binaryCodec;
+        }
+        return first == '{' || first == '[' || first == '"' ? jsonCodec : null;
+    }
+
+    /**
+     * 给过期时间加上0~CACHE_TTL_JITTER_RATIO比例的随机时长
+     * @return 毫秒
+     */
+    static long withJitter(Long time, TimeUnit unit) {
+        long millis = unit.toMillis(time);
+        long jitter = (long) (millis * CACHE_TTL_JITTER_RATIO);
+        return jitter <= 0 ? millis : millis + ThreadLocalRandom.current().nextLong(jitter + 1);
     }
 
     //缓存穿透
@@ -52,33 +453,57 @@ public class CacheClient {
             String keyPrefix, ID id,Class<R> type, Function<ID, R> dbFallback,Long time,TimeUnit unit){
 
         String key=keyPrefix+id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //布隆过滤器判断一定不存在，不用查Redis和数据库
+        if (!mightExist(keyPrefix, id)) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+        //最近查过不存在的id，本地有记录就不用查Redis
+        MissSet missSet = getMissSet(keyPrefix);
+        if (missSet.containsLocal(String.valueOf(id))) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.NULL_HIT);
+            return null;
+        }
         //1.从redis中查询店铺缓存
-        String json= stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         //2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //3.存在，直接返回
-            R r= JSONUtil.toBean(json, type);
-            return r;
+        if (bytes != null && bytes.length > 0) {
+            //3.存在，直接返回（格式不认识的当作未命中，重新加载）
+            R r = decode(bytes, type);
+            if (r != null) {
+                metrics.recordRequest(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.HIT);
+                putLocal(keyPrefix, key, r);
+                return r;
+            }
         }
 
-        //缓存穿透解决：判断命中的是否是空值
-        if(json!=null){
+        //缓存穿透解决：判断是否是不存在的id
+        if ((bytes != null && bytes.length == 0) || (bytes == null && missSet.contains(String.valueOf(id)))) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.NULL_HIT);
             //返回一个错误信息
 //            return Result.fail("店铺信息不存在");
             return null;
         }
 
         //4.不存在，根据id查询
-        R r = dbFallback.apply(id);
+        metrics.recordRequest(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.MISS);
+        R r = metrics.recordLoad(keyPrefix, CacheMetrics.PASS_THROUGH, () -> dbFallback.apply(id));
         //5.不存在，返回错误
         if(r==null){
-            //缓存穿透解决：将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            //缓存穿透解决：记录不存在的id
+            missSet.add(String.valueOf(id));
             //返回错误信息
             return null;
         }
         //6.存在，写入redis,//添加过期时间
         this.set(key,r,time,unit);
+        putLocal(keyPrefix, key, r);
         //7.返回
         return r;
 
@@ -86,130 +511,502 @@ public class CacheClient {
 
 
 
+    /**
+     * 批量查询：一次MGET查Redis，未命中的一次IN查询数据库，再用管道一次写回Redis
+     * @param keyPrefix key前缀
+     * @param ids id集合
+     * @param type 返回的类型
+     * @param dbFallback 根据一批id查询数据库，返回id到数据的映射
+     * @return 和ids顺序一致的结果，不存在的位置为null
+     */
+    public <R,ID> List<R> queryBatch(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //1.去重，先查本地缓存、布隆过滤器和本地记录的不存在id
+        MissSet missSet = getMissSet(keyPrefix);
+        Map<ID, R> found = new HashMap<>(ids.size());
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        int bloomRejects = 0;
+        int nullHits = 0;
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R local = getLocal(keyPrefix, keyPrefix + id);
+            if (local != null) {
+                found.put(id, local);
+            } else if (!mightExist(keyPrefix, id)) {
+                bloomRejects++;
+            } else if (missSet.containsLocal(String.valueOf(id))) {
+                nullHits++;
+            } else {
+                redisIds.add(id);
+            }
+        }
+        int localHits = found.size();
+        //2.一次MGET查询Redis，热点key先从本地副本中取
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            List<String> keys = redisIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            Map<String, byte[]> values = new HashMap<>(keys.size());
+            Set<String> hotKeys = new HashSet<>();
+            List<String> mgetKeys = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                byte[] replica = null;
+                if (hotKeyDetector.record(key)) {
+                    hotKeys.add(key);
+                    replica = (byte[]) hotKeyReplicas.get(key);
+                }
+                if (replica != null) {
+                    values.put(key, replica);
+                } else {
+                    mgetKeys.add(key);
+                }
+            }
+            List<byte[]> mgetValues = mgetKeys.isEmpty()
+                    ? Collections.emptyList() : cacheRedisTemplate.opsForValue().multiGet(mgetKeys);
+            for (int i = 0; i < mgetKeys.size(); i++) {
+                String key = mgetKeys.get(i);
+                byte[] bytes = mgetValues == null ? null : mgetValues.get(i);
+                values.put(key, bytes);
+                if (bytes != null && hotKeys.contains(key)) {
+                    hotKeyReplicas.put(key, bytes);
+                }
+            }
+            List<ID> absentIds = new ArrayList<>();
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values.get(keys.get(i));
+                //空值说明数据库中也不存在
+                if (bytes != null && bytes.length == 0) {
+                    nullHits++;
+                    continue;
+                }
+                R r = bytes == null ? null : decode(bytes, type);
+                if (r == null) {
+                    absentIds.add(redisIds.get(i));
+                } else {
+                    putLocal(keyPrefix, keys.get(i), r);
+                    found.put(redisIds.get(i), r);
+                }
+            }
+            //Redis中没有的，再用一次管道查是否是不存在的id
+            if (!absentIds.isEmpty()) {
+                Set<String> knownMisses = missSet.containsAll(
+                        absentIds.stream().map(String::valueOf).collect(Collectors.toList()));
+                for (ID id : absentIds) {
+                    if (knownMisses.contains(String.valueOf(id))) {
+                        nullHits++;
+                    } else {
+                        missIds.add(id);
+                    }
+                }
+            }
+        }
+        recordBatch(keyPrefix, CacheMetrics.LOCAL_HIT, localHits);
+        recordBatch(keyPrefix, CacheMetrics.BLOOM_REJECT, bloomRejects);
+        recordBatch(keyPrefix, CacheMetrics.NULL_HIT, nullHits);
+        recordBatch(keyPrefix, CacheMetrics.HIT, found.size() - localHits);
+        recordBatch(keyPrefix, CacheMetrics.MISS, missIds.size());
+        //3.未命中的一次查询数据库，再用管道一次写回Redis，不存在的记录到不存在id的集合
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = metrics.recordLoad(keyPrefix, CacheMetrics.BATCH, () -> dbFallback.apply(missIds));
+            Map<String, byte[]> values = new HashMap<>(missIds.size());
+            List<String> nullIds = new ArrayList<>();
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                String key = keyPrefix + id;
+                if (r == null) {
+                    nullIds.add(String.valueOf(id));
+                } else {
+                    found.put(id, r);
+                    putLocal(keyPrefix, key, r);
+                    values.put(key, encode(r));
+                }
+            }
+            setBatch(values, time, unit, RedisStringCommands.SetOption.UPSERT);
+            missSet.addAll(nullIds);
+        }
+        //4.按传入的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    private void recordBatch(String keyPrefix, String result, int count) {
+        if (count > 0) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.BATCH, result, count);
+        }
+    }
+
+    /**
+     * 批量写入不存在的缓存，用于预热，已有的缓存可能比这次读到的更新，不覆盖
+     * @param keyPrefix key前缀
+     * @param values id到数据的映射
+     */
+    public <ID> void setBatchIfAbsent(String keyPrefix, Map<ID, ?> values, Long time, TimeUnit unit) {
+        Map<String, byte[]> encoded = new HashMap<>(values.size());
+        for (Map.Entry<ID, ?> entry : values.entrySet()) {
+            encoded.put(keyPrefix + entry.getKey(), encode(entry.getValue()));
+        }
+        setBatch(encoded, time, unit, RedisStringCommands.SetOption.SET_IF_ABSENT);
+    }
+
+    /**
+     * 用管道批量写入，带过期时间（带随机抖动）
+     */
+    private void setBatch(Map<String, byte[]> values, Long time, TimeUnit unit, RedisStringCommands.SetOption option) {
+        if (values.isEmpty()) {
+            return;
+        }
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                connection.stringCommands().set(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue(),
+                        Expiration.milliseconds(withJitter(time, unit)), option);
+            }
+            return null;
+        });
+    }
+
+
+
     //逻辑过期时间 解决缓存击穿
     public <R,ID>R queryWithLogicalExpire(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
 
         String key = keyPrefix + id;
         //1.从redis查询店铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         //2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             //3.
+            metrics.recordRequest(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.MISS);
             return null;
         }
-        //4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //4.命中，需要先反序列化为对象
+        RedisData redisData = decodeLogical(bytes, type);
+        if (redisData == null) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.MISS);
+            return null;
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         //5.判断是否过期，z在这个时间之前的是过期的
         if (expireTime.isAfter(LocalDateTime.now())) {
             //5.1未过期，直接返回店铺信息
+            metrics.recordRequest(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.HIT);
             return r;
         }
         //5.2已过期，需要缓存重建
+        metrics.recordRequest(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.STALE);
         //6.缓存重建
         //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        String lockName = lockNameOf(keyPrefix, id);
+        String lockToken = tryLock(keyPrefix, lockName);
         //6.2判断是否获取锁成功
         //注意:获取锁成功应该再次检测redis缓存是否过期，做DoubleCheck。如果存在则无需重建缓存。
-        if (isLock) {
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //查询数据库
-                    R newR = dbFallback.apply(id);
-                    //重建缓存
-                    this.setWithLogicalExpire(key,newR,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
+        if (lockToken != null) {
+            rebuildWithLogicalExpire(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key, lockName, lockToken, id, dbFallback, time, unit);
         }
 
         //6.4返回过期的商铺信息
         return r;
     }
 
+    //逻辑过期的基础上提前刷新（XFetch）：越接近过期、重建越慢，越有可能提前触发后台重建
+    //热点key不会在同一时刻一起过期，也大大缩短了返回旧数据的时间
+    public <R,ID>R queryWithEarlyRefresh(
+            String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
+
+        String key = keyPrefix + id;
+        //1.从redis查询缓存
+        byte[] bytes = getBytes(key);
+        //2.判断是否存在
+        if (bytes == null || bytes.length == 0) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.MISS);
+            return null;
+        }
+        //3.命中，反序列化
+        RedisData redisData = decodeLogical(bytes, type);
+        if (redisData == null) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.MISS);
+            return null;
+        }
+        R r = type.cast(redisData.getData());
+        //4.判断是否需要提前刷新
+        if (!shouldRefreshEarly(redisData)) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.HIT);
+            return r;
+        }
+        metrics.recordRequest(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.STALE);
+        //5.获取互斥锁，后台重建
+        String lockName = lockNameOf(keyPrefix, id);
+        String lockToken = tryLock(keyPrefix, lockName);
+        if (lockToken != null) {
+            rebuildWithLogicalExpire(keyPrefix, CacheMetrics.EARLY_REFRESH, key, lockName, lockToken, id, dbFallback, time, unit);
+        }
+        //6.先返回当前的数据
+        return r;
+    }
+
+    /**
+     * XFetch算法：now - delta * beta * ln(random) >= expireTime 时刷新
+     * ln(random)是负数，所以重建耗时delta越大、离过期越近，提前刷新的概率越大；过期之后一定刷新
+     */
+    static boolean shouldRefreshEarly(RedisData redisData) {
+        long remaining = Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis();
+        if (remaining <= 0) {
+            return true;
+        }
+        long delta = redisData.getDelta() == null ? XFETCH_DEFAULT_DELTA : redisData.getDelta();
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return -delta * XFETCH_BETA * Math.log(random) >= remaining;
+    }
+
+    /**
+     * 提交后台任务重建逻辑过期的缓存，同时记录重建花费的时间
+     */
+    private <R,ID> void rebuildWithLogicalExpire(String keyPrefix, String strategy,
+            String key, String lockName, String lockToken, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        //越热的key越先重建
+        boolean submitted = rebuildExecutor.submit(key, hotKeyDetector.estimate(key), () -> {
+            try {
+                long begin = System.currentTimeMillis();
+                //查询数据库
+                R newR = metrics.recordLoad(keyPrefix, strategy, () -> dbFallback.apply(id));
+                //重建缓存
+                this.setWithLogicalExpire(key, newR, time, unit, System.currentTimeMillis() - begin);
+            } finally {
+                //释放锁，通知等待互斥锁的线程重建完成
+                unLock(lockName, lockToken);
+                stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+            }
+        });
+        if (!submitted) {
+            //已经在排队或者队列满了，这次不重建，继续返回旧数据
+            unLock(lockName, lockToken);
+        }
+    }
+
 
 
     //互斥锁解决缓存击穿
+    //同一个节点内同一个key只有一个线程去加载（single-flight），其他线程共享它的结果；
+    //节点之间仍然用Redis互斥锁，拿不到锁的节点等待重建完成的广播通知，而不是休眠轮询
     public <R,ID>R queryWithMutex(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
 
         String key = keyPrefix + id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //布隆过滤器判断一定不存在，不用查Redis和数据库
+        if (!mightExist(keyPrefix, id)) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+        //最近查过不存在的id，本地有记录就不用查Redis
+        MissSet missSet = getMissSet(keyPrefix);
+        if (missSet.containsLocal(String.valueOf(id))) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.NULL_HIT);
+            return null;
+        }
         //1.从redis中查询店铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         //2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (bytes != null && bytes.length > 0) {
             //3.存在，直接返回
-            R r = JSONUtil.toBean(json, type);
-            return r;
+            R r = decode(bytes, type);
+            if (r != null) {
+                metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.HIT);
+                putLocal(keyPrefix, key, r);
+                return r;
+            }
         }
 
-        //缓存穿透解决：判断命中的是否是空值
-        if (json != null) {
+        //缓存穿透解决：判断是否是不存在的id
+        if ((bytes != null && bytes.length == 0) || (bytes == null && missSet.contains(String.valueOf(id)))) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.NULL_HIT);
             //返回一个错误信息
 //            return Result.fail("店铺信息不存在");
             return null;
         }
 
         //4.实现缓存重构
-        //4.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
-
-        try {//Thread.sleep()需要抛出异常
-            boolean isLock = tryLock(lockKey);
-            //4.2判断是否获取成功
-            if (!isLock) {
-                //4.3失败，则休眠重试
-                Thread.sleep(50);
-                //递归
-                return queryWithMutex(keyPrefix,id,type,dbFallback,time,unit);
-            }
-            //4.4成功,根据id查询数据库
-            r= dbFallback.apply(id);
-
-            //5.不存在，返回错误
-            if (r == null) {
-                //缓存穿透解决：将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
-            }
-            //6.存在，写入redis,//添加过期时间
-            this.set(key,r,time,unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        //4.1本节点已经有线程在加载，直接等它的结果
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlightLoads.putIfAbsent(key, future);
+        if (loading != null) {
+            metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.COALESCED);
+            return type.cast(loading.join());
+        }
+        metrics.recordRequest(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.MISS);
+        //4.2本节点只有这一个线程去重建
+        try {
+            R r = loadWithMutex(keyPrefix, key, id, type, dbFallback, time, unit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
         } finally {
-            unLock(lockKey);
+            inFlightLoads.remove(key, future);
         }
-        //7.返回
-        return r;
     }
 
+    /**
+     * 获取Redis互斥锁后查询数据库并写入缓存，获取不到锁则等待其他节点重建完成的通知
+     */
+    private <R,ID>R loadWithMutex(
+            String keyPrefix, String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String lockName = lockNameOf(keyPrefix, id);
+        long deadline = System.currentTimeMillis() + MUTEX_MAX_WAIT_MILLIS;
+        for (int i = 0; i < MUTEX_MAX_WAIT_TIMES; i++) {
+            //1.获取互斥锁
+            String lockToken = tryLock(keyPrefix, lockName);
+            if (lockToken != null) {
+                try {
+                    //2.拿到锁之后再查一次，可能别的节点刚刚重建完
+                    CachedValue<R> cached = readCached(keyPrefix, key, type);
+                    if (cached != null) {
+                        return cached.value;
+                    }
+                    //3.根据id查询数据库
+                    return loadAndCache(keyPrefix, key, id, dbFallback, time, unit);
+                } finally {
+                    unLock(lockName, lockToken);
+                    //通知其他节点重建完成
+                    stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+                }
+            }
+            //4.没拿到锁，先登记等待，再查一次缓存，避免在登记之前重建就已经完成了
+            CompletableFuture<Void> rebuilt = rebuildWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+            CachedValue<R> cached = readCached(keyPrefix, key, type);
+            if (cached != null) {
+                //已经重建完了，通知可能已经错过，登记的等待不会再被删除
+                rebuildWaiters.remove(key, rebuilt);
+                return cached.value;
+            }
+            //5.等待重建完成的通知，所有轮次一共最多等MUTEX_MAX_WAIT_MILLIS，超时后重新抢锁或者直接查数据库
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                rebuildWaiters.remove(key, rebuilt);
+                break;
+            }
+            try {
+                rebuilt.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //通知丢了或者持有锁的节点挂了，删除登记，不然一直留在map中
+                rebuildWaiters.remove(key, rebuilt);
+                metrics.recordLock(keyPrefix, CacheMetrics.LOCK_TIMEOUT);
+                log.warn("等待缓存重建超时, key={}", key);
+                continue;
+            } catch (InterruptedException e) {
+                rebuildWaiters.remove(key, rebuilt);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+            cached = readCached(keyPrefix, key, type);
+            if (cached != null) {
+                return cached.value;
+            }
+        }
+        //6.多次等待都没有结果，直接查数据库兜底
+        log.warn("多次等待缓存重建失败，直接查询数据库, key={}", key);
+        return loadAndCache(keyPrefix, key, id, dbFallback, time, unit);
+    }
 
     /**
-     * 创建锁：使用redis的string类型的setnx，这个命令不允许建立重复的数据，可以实现锁
+     * 查询Redis中的缓存
+     * @return 没有缓存返回null；记录为不存在的id时返回的value为null
+     */
+    private <R> CachedValue<R> readCached(String keyPrefix, String key, Class<R> type) {
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes == null) {
+            return getMissSet(keyPrefix).contains(key.substring(keyPrefix.length())) ? new CachedValue<>(null) : null;
+        }
+        if (bytes.length == 0) {
+            return new CachedValue<>(null);
+        }
+        R r = decode(bytes, type);
+        if (r == null) {
+            return null;
+        }
+        putLocal(keyPrefix, key, r);
+        return new CachedValue<>(r);
+    }
+
+    private static class CachedValue<R> {
+        private final R value;
+
+        private CachedValue(R value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * 查询数据库并写入缓存，不存在时记录到不存在id的集合
+     */
+    private <R,ID>R loadAndCache(
+            String keyPrefix, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        R r = metrics.recordLoad(keyPrefix, CacheMetrics.MUTEX, () -> dbFallback.apply(id));
+        if (r == null) {
+            //缓存穿透解决：记录不存在的id
+            getMissSet(keyPrefix).add(String.valueOf(id));
+            return null;
+        }
+        //存在，写入redis,添加过期时间
+        this.set(key, r, time, unit);
+        putLocal(keyPrefix, key, r);
+        return r;
+    }
+
+    /**
+     * 收到其他节点重建完成的通知，唤醒本节点等待的线程
      * @param key
-     * @return
      */
-    private boolean tryLock(String key){
+    private void onRebuilt(String key) {
+        CompletableFuture<Void> rebuilt = rebuildWaiters.remove(key);
+        if (rebuilt != null) {
+            rebuilt.complete(null);
+        }
+    }
+
+
+    /**
+     * 重建缓存的锁名：缓存key的前缀去掉cache:，例如cache:shop:1的锁是lock:shop:1，不同前缀的同一个id不会互相等待
+     */
+    private static String lockNameOf(String keyPrefix, Object id) {
+        String name = keyPrefix.startsWith(CACHE_KEY_PREFIX) ? keyPrefix.substring(CACHE_KEY_PREFIX.length()) : keyPrefix;
+        return name + id;
+    }
+
+    /**
+     * 创建锁：和同名的SimpleRedisLock是同一把锁（hash结构），两边互斥
+     * 锁不属于线程，后台重建时在重建线程中释放
+     * @param keyPrefix 缓存的key前缀，用于统计锁竞争
+     * @param name 锁名，key是lock:{name}
+     * @return 持有者标示，没拿到锁返回null
+     */
+    private String tryLock(String keyPrefix, String name){
         //因为可能会有某些原因导致锁没有被删除，所以设置有效期将其自动删除
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        //自动拆箱可能会出现空指针，先使用工具
-        return BooleanUtil.isTrue(flag);
+        String token = SimpleRedisLock.tryLockOnce(name, TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL), stringRedisTemplate);
+        metrics.recordLock(keyPrefix, token != null ? CacheMetrics.LOCK_ACQUIRED : CacheMetrics.LOCK_CONTENDED);
+        return token;
     }
 
     /**
-     * 释放锁
-     * @param key
+     * 释放锁：持有者标示一致才删除，重建太慢锁过期后被其他节点拿到了就不删；同时唤醒在SimpleRedisLock上等待的线程
+     * @param name
+     * @param token tryLock返回的持有者标示
      */
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+    private void unLock(String name, String token){
+        SimpleRedisLock.unlockOnce(name, token, stringRedisTemplate);
     }
 }
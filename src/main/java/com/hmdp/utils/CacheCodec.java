@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码方式
+ * 编码结果的第一个字节是版本号，读取时根据它选择解码器，所以切换编码方式时新旧数据可以同时存在
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码结果的第一个字节，用来区分编码方式和版本
+     */
+    byte version();
+
+    /**
+     * 是否支持这个类型
+     */
+    boolean supports(Class<?> type);
+
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     * @return 数据格式不认识时返回null，调用方当作缓存未命中处理
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码逻辑过期的数据
+     */
+    byte[] encodeLogical(RedisData redisData);
+
+    /**
+     * 解码逻辑过期的数据，返回的RedisData中data已经是type类型
+     */
+    <T> RedisData decodeLogical(byte[] bytes, Class<T> type);
+}
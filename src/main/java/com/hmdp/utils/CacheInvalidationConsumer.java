@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 根据数据变更删除缓存、更新GEO和布隆过滤器，不依赖写数据的代码自己删缓存
+ * 变更先按 表+id 合并，每个时间窗口处理一次，同一行的多次变更只删一次缓存；处理完再延迟删除一次
+ */
+@Slf4j
+@Component
+public class CacheInvalidationConsumer {
+
+    public static final String TABLE_SHOP = "tb_shop";
+    public static final String TABLE_SHOP_TYPE = "tb_shop_type";
+    public static final String TABLE_BLOG = "tb_blog";
+    public static final String TABLE_USER = "tb_user";
+
+    @Resource
+    private List<ChangeEventSource> sources;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //还没处理的变更，key是 表:id
+    private final Map<String, RowChange> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        flushExecutor.scheduleWithFixedDelay(this::flush, CHANGE_FLUSH_MILLIS, CHANGE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        for (ChangeEventSource source : sources) {
+            source.start(this::accept);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        sources.forEach(ChangeEventSource::stop);
+        flushExecutor.shutdown();
+    }
+
+    /**
+     * 接收一批变更，和还没处理的同一行的变更合并
+     */
+    public void accept(List<RowChange> changes) {
+        for (RowChange change : changes) {
+            pending.merge(change.getTable() + ":" + change.getId(), change, CacheInvalidationConsumer::merge);
+        }
+    }
+
+    /**
+     * 合并同一行的两次变更：保留最早的变更前数据，变更后数据以最新的为准
+     */
+    private static RowChange merge(RowChange older, RowChange newer) {
+        RowChange merged = new RowChange();
+        merged.setTable(newer.getTable());
+        merged.setId(newer.getId());
+        //先新增后修改，还是新增
+        merged.setType(older.getType() == RowChange.Type.INSERT && newer.getType() == RowChange.Type.UPDATE
+                ? RowChange.Type.INSERT : newer.getType());
+        merged.setBefore(older.getBefore());
+        //后一次修改可能只有修改了的列，前一次修改的列也要保留
+        if (older.getAfter() != null && newer.getAfter() != null && newer.getType() == RowChange.Type.UPDATE) {
+            Map<String, Object> after = new HashMap<>(older.getAfter());
+            after.putAll(newer.getAfter());
+            merged.setAfter(after);
+        } else {
+            merged.setAfter(newer.getAfter());
+        }
+        return merged;
+    }
+
+    /**
+     * 处理一个时间窗口内的变更
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        //1.取出当前所有的变更，处理期间新来的留到下一个窗口
+        List<RowChange> changes = new ArrayList<>(pending.size());
+        for (String key : pending.keySet()) {
+            RowChange change = pending.remove(key);
+            if (change != null) {
+                changes.add(change);
+            }
+        }
+        //2.转换成要删除的缓存、GEO的增删和布隆过滤器的新增
+        Set<String> cacheKeys = new HashSet<>();
+        Map<String, List<RedisGeoCommands.GeoLocation<String>>> geoAdds = new HashMap<>();
+        Map<String, List<String>> geoRemoves = new HashMap<>();
+        boolean shopTypeChanged = false;
+        for (RowChange change : changes) {
+            Long id = change.getId();
+            switch (change.getTable()) {
+                case TABLE_SHOP:
+                    cacheKeys.add(CACHE_SHOP_KEY + id);
+                    collectShopGeo(change, geoAdds, geoRemoves);
+                    if (change.getType() == RowChange.Type.INSERT) {
+                        cacheClient.addToBloomFilter(CACHE_SHOP_KEY, id);
+                    }
+                    break;
+                case TABLE_SHOP_TYPE:
+                    shopTypeChanged = true;
+                    break;
+                case TABLE_BLOG:
+                    cacheKeys.add(CACHE_BLOG_KEY + id);
+                    if (change.getType() == RowChange.Type.INSERT) {
+                        cacheClient.addToBloomFilter(CACHE_BLOG_KEY, id);
+                    }
+                    break;
+                case TABLE_USER:
+                    cacheKeys.add(CACHE_USER_KEY + id);
+                    break;
+                default:
+                    break;
+            }
+        }
+        try {
+            //3.删除缓存，再延迟删除一次
+            cacheClient.deleteBatch(cacheKeys);
+            cacheClient.deleteLater(cacheKeys, CACHE_DOUBLE_DELETE_DELAY, TimeUnit.MILLISECONDS);
+            //4.一次管道更新GEO
+            updateGeo(geoAdds, geoRemoves);
+            //5.店铺类型的版本号加一，广播新的版本号
+            if (shopTypeChanged) {
+                Long version = stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+                stringRedisTemplate.convertAndSend(CACHE_SHOP_TYPE_CHANNEL, String.valueOf(version));
+            }
+        } catch (Exception e) {
+            log.error("处理数据变更失败, changes={}", changes.size(), e);
+        }
+    }
+
+    /**
+     * 店铺的类型或坐标变了要更新GEO：从旧类型的集合中删除，加入新类型的集合
+     * 变更后的数据可能只有修改了的列（比如只改了坐标），没改的列用变更前的补上
+     */
+    private static void collectShopGeo(RowChange change,
+                                       Map<String, List<RedisGeoCommands.GeoLocation<String>>> geoAdds,
+                                       Map<String, List<String>> geoRemoves) {
+        String member = change.getId().toString();
+        Map<String, Object> before = change.getBefore();
+        Map<String, Object> after = change.getAfter();
+        if (before != null && after != null) {
+            Map<String, Object> merged = new HashMap<>(before);
+            merged.putAll(after);
+            after = merged;
+        }
+        Object oldTypeId = before == null ? null : before.get("type_id");
+        Object newTypeId = after == null ? null : after.get("type_id");
+        //1.删除了，或者换了类型，从旧的集合中删除
+        if (oldTypeId != null && (change.getType() == RowChange.Type.DELETE
+                || (newTypeId != null && !Objects.equals(oldTypeId, newTypeId)))) {
+            geoRemoves.computeIfAbsent(SHOP_GEO_KEY + oldTypeId, k -> new ArrayList<>()).add(member);
+        }
+        //2.变更后有完整的类型和坐标，写入新的集合（GEOADD会覆盖原来的坐标）
+        if (change.getType() != RowChange.Type.DELETE && newTypeId != null
+                && after.get("x") != null && after.get("y") != null) {
+            Point point = new Point(((Number) after.get("x")).doubleValue(), ((Number) after.get("y")).doubleValue());
+            geoAdds.computeIfAbsent(SHOP_GEO_KEY + newTypeId, k -> new ArrayList<>())
+                    .add(new RedisGeoCommands.GeoLocation<>(member, point));
+        }
+    }
+
+    private void updateGeo(Map<String, List<RedisGeoCommands.GeoLocation<String>>> geoAdds,
+                           Map<String, List<String>> geoRemoves) {
+        if (geoAdds.isEmpty() && geoRemoves.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<String, List<String>> entry : geoRemoves.entrySet()) {
+                conn.zRem(entry.getKey(), entry.getValue().toArray(new String[0]));
+            }
+            for (Map.Entry<String, List<RedisGeoCommands.GeoLocation<String>>> entry : geoAdds.entrySet()) {
+                conn.geoAdd(entry.getKey(), entry.getValue());
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * CacheClient的监控指标，按key前缀（prefix）和缓存策略（strategy）打标签，通过管理端口的/actuator/metrics查看
+ * cache.requests      每次查询的结果：hit、local_hit、null_hit、miss、stale、bloom_reject、coalesced
+ * cache.load          查询数据库的耗时，带百分位直方图
+ * cache.lock          获取重建锁的结果：acquired、contended、timeout
+ * cache.rebuild.*     后台重建线程池的指标，见CacheRebuildExecutor
+ * cache.local.*       本地一级缓存、热点key副本的大小和命中次数
+ */
+public class CacheMetrics {
+
+    public static final String PASS_THROUGH = "pass_through";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL_EXPIRE = "logical_expire";
+    public static final String EARLY_REFRESH = "early_refresh";
+    public static final String BATCH = "batch";
+
+    public static final String HIT = "hit";
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String NULL_HIT = "null_hit";
+    public static final String MISS = "miss";
+    public static final String STALE = "stale";
+    public static final String BLOOM_REJECT = "bloom_reject";
+    public static final String COALESCED = "coalesced";
+
+    public static final String LOCK_ACQUIRED = "acquired";
+    public static final String LOCK_CONTENDED = "contended";
+    public static final String LOCK_TIMEOUT = "timeout";
+
+    private final MeterRegistry registry;
+    //指标对象按 名称+标签 缓存起来，查询路径上不用每次都去注册表中查找
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void recordRequest(String prefix, String strategy, String result) {
+        recordRequest(prefix, strategy, result, 1);
+    }
+
+    public void recordRequest(String prefix, String strategy, String result, int count) {
+        counters.computeIfAbsent("requests|" + prefix + "|" + strategy + "|" + result,
+                k -> registry.counter("cache.requests", "prefix", prefix, "strategy", strategy, "result", result))
+                .increment(count);
+    }
+
+    public void recordLock(String prefix, String result) {
+        counters.computeIfAbsent("lock|" + prefix + "|" + result,
+                k -> registry.counter("cache.lock", "prefix", prefix, "result", result))
+                .increment();
+    }
+
+    /**
+     * 记录一次查询数据库的耗时
+     */
+    public <T> T recordLoad(String prefix, String strategy, Supplier<T> loader) {
+        Timer timer = timers.computeIfAbsent(prefix + "|" + strategy, k -> Timer.builder("cache.load")
+                .tags("prefix", prefix, "strategy", strategy)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry));
+        return timer.record(loader);
+    }
+
+    /**
+     * 监控本地缓存
+     * @param name local（一级缓存）或replica（热点key副本）
+     */
+    public void bindLocalCache(String name, String prefix, LocalCache<?> localCache) {
+        Gauge.builder("cache.local.size", localCache, LocalCache::size)
+                .tags("name", name, "prefix", prefix).register(registry);
+        FunctionCounter.builder("cache.local.requests", localCache, LocalCache::getHitCount)
+                .tags("name", name, "prefix", prefix, "result", HIT).register(registry);
+        FunctionCounter.builder("cache.local.requests", localCache, LocalCache::getMissCount)
+                .tags("name", name, "prefix", prefix, "result", MISS).register(registry);
+        FunctionCounter.builder("cache.local.evictions", localCache, LocalCache::getEvictionCount)
+                .tags("name", name, "prefix", prefix).register(registry);
+    }
+
+    public void bindBloomFilter(String prefix, BloomFilter bloomFilter) {
+        FunctionCounter.builder("cache.bloom.rejects", bloomFilter, BloomFilter::getRejectCount)
+                .tags("prefix", prefix).register(registry);
+    }
+}
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存重建的线程池，所有逻辑过期的后台重建共用
+ * 1.队列有上限，满了按拒绝策略处理，默认直接丢弃，调用方继续返回旧数据
+ * 2.同一个key在排队或正在重建时不会再提交一次
+ * 3.按key的热度排序，越热的key越先重建，热度相同的先提交先执行
+ * 4.任务的异常会记录日志，不会被吞掉
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    public enum RejectPolicy {
+        //丢弃新任务，调用方继续返回旧数据
+        DISCARD,
+        //在调用方的线程中直接重建
+        CALLER_RUNS
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final RejectPolicy rejectPolicy;
+    //排队中或正在执行的key
+    private final Map<String, Boolean> pendingKeys = new ConcurrentHashMap<>();
+    //任务提交的顺序，热度相同时先提交的先执行
+    private final AtomicLong sequence = new AtomicLong();
+    //排队中的任务数，PriorityBlockingQueue本身没有上限，用它控制队列长度
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final Timer waitTimer;
+    private final Timer rebuildTimer;
+    private final Counter rejectedCounter;
+    private final Counter duplicateCounter;
+    private final Counter failedCounter;
+
+    //有两个构造器，Spring用这一个，另一个给测试指定线程数和队列容量
+    @Autowired
+    public CacheRebuildExecutor(MeterRegistry registry) {
+        this(registry, CACHE_REBUILD_THREADS, CACHE_REBUILD_QUEUE_CAPACITY, CACHE_REBUILD_REJECT_POLICY);
+    }
+
+    CacheRebuildExecutor(MeterRegistry registry, int threads, int queueCapacity, RejectPolicy rejectPolicy) {
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+        this.queueCapacity = queueCapacity;
+        this.rejectPolicy = rejectPolicy;
+        this.waitTimer = Timer.builder("cache.rebuild.wait")
+                .publishPercentiles(0.5, 0.99).publishPercentileHistogram().register(registry);
+        this.rebuildTimer = Timer.builder("cache.rebuild.duration")
+                .publishPercentiles(0.5, 0.99).publishPercentileHistogram().register(registry);
+        this.rejectedCounter = registry.counter("cache.rebuild.rejected");
+        this.duplicateCounter = registry.counter("cache.rebuild.duplicate");
+        this.failedCounter = registry.counter("cache.rebuild.failed");
+        Gauge.builder("cache.rebuild.queue", queued, AtomicInteger::get).register(registry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(registry);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存的key，用于去重
+     * @param priority 热度，越大越先执行
+     * @param task 重建任务
+     * @return 是否已经执行或进入队列；返回false时任务不会执行，调用方需要自己释放锁
+     */
+    public boolean submit(String key, long priority, Runnable task) {
+        //1.同一个key已经在排队或重建
+        if (pendingKeys.putIfAbsent(key, Boolean.TRUE) != null) {
+            duplicateCounter.increment();
+            return false;
+        }
+        //2.队列满了，按拒绝策略处理
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            rejectedCounter.increment();
+            if (rejectPolicy == RejectPolicy.CALLER_RUNS) {
+                run(key, task, System.nanoTime());
+                return true;
+            }
+            pendingKeys.remove(key);
+            return false;
+        }
+        //3.进入队列
+        executor.execute(new RebuildTask(key, priority, sequence.incrementAndGet(), task));
+        return true;
+    }
+
+    private void run(String key, Runnable task, long submitTime) {
+        waitTimer.record(System.nanoTime() - submitTime, TimeUnit.NANOSECONDS);
+        long begin = System.nanoTime();
+        try {
+            task.run();
+        } catch (Exception e) {
+            failedCounter.increment();
+            log.error("缓存重建失败, key={}", key, e);
+        } finally {
+            rebuildTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            pendingKeys.remove(key);
+        }
+    }
+
+    @PreDestroy
+    void destroy() {
+        executor.shutdown();
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final long priority;
+        private final long sequence;
+        private final Runnable task;
+        private final long submitTime = System.nanoTime();
+
+        private RebuildTask(String key, long priority, long sequence, Runnable task) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            CacheRebuildExecutor.this.run(key, task, submitTime);
+        }
+
+        @Override
+        public int compareTo(RebuildTask other) {
+            if (priority != other.priority) {
+                return Long.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时的缓存预热：分页读取数据库，用管道批量写入Redis，避免发布或Redis清空后大量请求直接打到数据库
+ * 预热在ApplicationRunner中同步执行，Spring Boot在所有runner执行完之后才发布ACCEPTING_TRAFFIC，
+ * 所以预热完成之前节点的就绪探针（管理端口的/actuator/health/readiness）不会通过，不会接到流量
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    private static final String TMP_SUFFIX = ":tmp";
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        //1.预热期间拒绝流量
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        long begin = System.currentTimeMillis();
+        //2.几类数据互不依赖，用有限的线程并行预热，控制对数据库的压力
+        ExecutorService executor = Executors.newFixedThreadPool(WARMUP_THREADS);
+        try {
+            executor.submit(() -> warmUp("店铺布隆过滤器", () -> warmUpBloomFilter(CACHE_SHOP_KEY, shopService)));
+            executor.submit(() -> warmUp("笔记布隆过滤器", () -> warmUpBloomFilter(CACHE_BLOG_KEY, blogService)));
+            executor.submit(() -> warmUp("店铺", this::warmUpShops));
+            executor.submit(() -> warmUp("店铺类型", this::warmUpShopTypes));
+            executor.submit(() -> warmUp("热门笔记", this::warmUpHotBlogs));
+            executor.submit(() -> warmUp("秒杀库存", this::warmUpSeckill));
+        } finally {
+            executor.shutdown();
+        }
+        //3.等待预热完成，超时就不等了，没预热到的数据走正常的缓存未命中流程
+        if (!executor.awaitTermination(WARMUP_TIMEOUT, TimeUnit.SECONDS)) {
+            log.warn("缓存预热超时，未完成的部分不再等待");
+            executor.shutdownNow();
+        }
+        log.info("缓存预热结束，耗时{}ms", System.currentTimeMillis() - begin);
+        //4.返回之后由Spring Boot发布ACCEPTING_TRAFFIC
+    }
+
+    /**
+     * 执行一类数据的预热，失败只记录日志，不影响启动
+     */
+    private void warmUp(String name, WarmUpTask task) {
+        long begin = System.currentTimeMillis();
+        try {
+            int count = task.run();
+            log.info("预热{}完成，共{}条，耗时{}ms", name, count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("预热{}失败", name, e);
+        }
+    }
+
+    /**
+     * 用数据库中已有的id初始化布隆过滤器，按id分页，每页只查id列；初始化完成之前布隆过滤器不拦截
+     */
+    private <T> int warmUpBloomFilter(String keyPrefix, IService<T> service) {
+        BloomFilter bloomFilter = cacheClient.getBloomFilter(keyPrefix);
+        if (bloomFilter == null) {
+            return 0;
+        }
+        return bloomFilter.rebuild(lastId -> service.listObjs(
+                new QueryWrapper<T>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + WARMUP_PAGE_SIZE),
+                id -> ((Number) id).longValue()));
+    }
+
+    /**
+     * 店铺详情缓存，同时重建按类型分组的GEO集合
+     * GEO先写入临时key，全部写完之后再rename，重建期间附近店铺查询还能查到旧数据；已经没有店铺的类型删除GEO集合
+     */
+    private int warmUpShops() {
+        Set<String> geoKeys = new HashSet<>();
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            //1.按id分页，每次从上一页最后一个id往后查，不用offset
+            List<Shop> shops = shopService.query()
+                    .gt("id", lastId).orderByAsc("id").last("limit " + WARMUP_PAGE_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            //2.店铺详情，已有的缓存不覆盖
+            cacheClient.setBatchIfAbsent(CACHE_SHOP_KEY, toMap(shops, Shop::getId), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            //3.GEO，按类型分组，一次管道写入这一页
+            Map<Long, List<Shop>> byType = shops.stream().collect(Collectors.groupingBy(Shop::getTypeId));
+            for (Long typeId : byType.keySet()) {
+                String tmpKey = SHOP_GEO_KEY + typeId + TMP_SUFFIX;
+                //第一次遇到这个类型，清掉上次没完成的临时key
+                if (geoKeys.add(SHOP_GEO_KEY + typeId)) {
+                    stringRedisTemplate.delete(tmpKey);
+                }
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Map.Entry<Long, List<Shop>> entry : byType.entrySet()) {
+                    List<RedisGeoCommands.GeoLocation<String>> locations = entry.getValue().stream()
+                            .map(shop -> new RedisGeoCommands.GeoLocation<>(
+                                    shop.getId().toString(), new Point(shop.getX(), shop.getY())))
+                            .collect(Collectors.toList());
+                    conn.geoAdd(SHOP_GEO_KEY + entry.getKey() + TMP_SUFFIX, locations);
+                }
+                return null;
+            });
+            count += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        //4.全部写完，替换正式的GEO集合
+        for (String geoKey : geoKeys) {
+            stringRedisTemplate.rename(geoKey + TMP_SUFFIX, geoKey);
+        }
+        //5.没有店铺的类型，原来的GEO集合中都是旧数据
+        List<String> emptyKeys = shopTypeService.listObjs(new QueryWrapper<ShopType>().select("id")).stream()
+                .map(typeId -> SHOP_GEO_KEY + typeId)
+                .filter(geoKey -> !geoKeys.contains(geoKey))
+                .collect(Collectors.toList());
+        if (!emptyKeys.isEmpty()) {
+            stringRedisTemplate.delete(emptyKeys);
+        }
+        return count;
+    }
+
+    /**
+     * 店铺类型列表，加载当前版本写入Redis和本节点内存
+     */
+    private int warmUpShopTypes() {
+        return shopTypeService.getSnapshot().getTypes().size();
+    }
+
+    /**
+     * 点赞数最多的前N篇笔记
+     */
+    private int warmUpHotBlogs() {
+        int count = 0;
+        for (int current = 1; count < WARMUP_HOT_BLOG_COUNT; current++) {
+            //不需要查询总数
+            List<Blog> blogs = blogService.query()
+                    .orderByDesc("liked")
+                    .page(new Page<>(current, WARMUP_PAGE_SIZE, false))
+                    .getRecords();
+            if (blogs.isEmpty()) {
+                break;
+            }
+            cacheClient.setBatchIfAbsent(CACHE_BLOG_KEY, toMap(blogs, Blog::getId), CACHE_BLOG_TTL, TimeUnit.MINUTES);
+            count += blogs.size();
+        }
+        return count;
+    }
+
+    /**
+     * 还没结束的秒杀券的秒杀时间、库存和已下单用户
+     * 库存只在不存在时写入：Redis中的库存可能已经扣减了，但订单还没写入数据库，覆盖会导致超卖
+     * 段数以数据库为准，Redis清空后分段库存的段数和各段的库存也能重建
+     */
+    private int warmUpSeckill() {
+        int count = 0;
+        long lastId = 0;
+        LocalDateTime now = LocalDateTime.now();
+        while (true) {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", lastId).gt("end_time", now)
+                    .orderByAsc("voucher_id").last("limit " + WARMUP_PAGE_SIZE).list();
+            if (vouchers.isEmpty()) {
+                break;
+            }
+            for (SeckillVoucher voucher : vouchers) {
+                warmUpSeckill(voucher);
+            }
+            count += vouchers.size();
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+        return count;
+    }
+
+    /**
+     * 一张秒杀券：先写秒杀时间和库存，再按订单id分页写入已下单的用户
+     */
+    private void warmUpSeckill(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        int segments = voucher.getStockSegments() == null ? 0 : voucher.getStockSegments();
+        //1.秒杀时间和库存
+        stringRedisTemplate.opsForHash().putAll(SECKILL_INFO_KEY + voucherId,
+                SeckillGate.info(voucher.getBeginTime(), voucher.getEndTime()));
+        if (segments > 0) {
+            segmentedStock.restore(voucherId, voucher.getStock(), segments);
+        } else {
+            stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_STOCK_KEY + voucherId, voucher.getStock().toString());
+        }
+        //2.已下单的用户，一人一单的判断依赖它；分段的写入用户所属的段
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id").eq("voucher_id", voucherId)
+                    .gt("id", lastId).orderByAsc("id").last("limit " + WARMUP_PAGE_SIZE).list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = segments > 0
+                            ? SegmentedStock.orderKey(voucherId, SegmentedStock.homeSegment(order.getUserId(), segments))
+                            : SECKILL_ORDER_KEY + voucherId;
+                    conn.sAdd(key, order.getUserId().toString());
+                }
+                return null;
+            });
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+    }
+
+    private static <T> Map<Long, T> toMap(List<T> list, Function<T, Long> idGetter) {
+        return list.stream().collect(Collectors.toMap(idGetter, Function.identity()));
+    }
+
+    private interface WarmUpTask {
+        int run();
+    }
+}
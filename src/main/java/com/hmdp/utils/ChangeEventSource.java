@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 数据变更的来源，例如MySQL binlog的订阅客户端
+ * 实现类声明为Spring Bean即可，CacheInvalidationConsumer会订阅所有的来源
+ */
+public interface ChangeEventSource {
+
+    /**
+     * 开始订阅，收到的变更分批交给handler处理
+     * @param handler 变更处理器，同一个来源的变更按顺序调用
+     */
+    void start(Consumer<List<RowChange>> handler);
+
+    /**
+     * 停止订阅
+     */
+    void stop();
+}
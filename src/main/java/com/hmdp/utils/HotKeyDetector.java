@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测：按采样率记录key的访问次数，用count-min sketch统计最近一段时间的访问频率
+ * 时间分成若干个窗口，每个窗口一个sketch，滑动时清空最老的窗口，估算值是所有窗口之和
+ * count-min sketch只会高估不会低估，误判的代价只是多复制一个不太热的key
+ */
+public class HotKeyDetector {
+
+    //sketch的行数（哈希函数个数）和每行的计数器个数
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+
+    private final int sampleRate;
+    private final long windowMillis;
+    private final long threshold;
+    private final int maxHotKeys;
+
+    //环形数组，每个窗口一个sketch，按行展开为一维：row * WIDTH + column
+    private final AtomicIntegerArray[] windows;
+    //当前窗口的编号：当前时间 / 窗口长度
+    private volatile long currentWindow;
+
+    //已经晋升的热点key，value是最后一次被判定为热点的时间
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * @param windowCount 窗口个数
+     * @param windowMillis 每个窗口的时长（毫秒）
+     * @param sampleRate 采样率，每sampleRate次访问记录一次
+     * @param threshold 所有窗口内的访问次数达到多少算热点
+     * @param maxHotKeys 最多同时有多少个热点key
+     */
+    public HotKeyDetector(int windowCount, long windowMillis, int sampleRate, long threshold, int maxHotKeys) {
+        this.windowMillis = windowMillis;
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.maxHotKeys = maxHotKeys;
+        this.windows = new AtomicIntegerArray[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            windows[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        this.currentWindow = System.currentTimeMillis() / windowMillis;
+    }
+
+    /**
+     * 记录一次访问
+     * @return 这个key当前是否是热点
+     */
+    public boolean record(String key) {
+        //1.按采样率记录，没采样到的只判断是否已经是热点
+        if (ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return isHot(key);
+        }
+        //2.滑动到当前窗口，累加计数
+        long now = System.currentTimeMillis();
+        AtomicIntegerArray sketch = windows[(int) (slide(now) % windows.length)];
+        int[] indexes = indexes(key);
+        for (int i = 0; i < DEPTH; i++) {
+            sketch.incrementAndGet(indexes[i]);
+        }
+        //3.估算所有窗口内的访问次数，超过阈值就晋升为热点
+        long estimate = estimate(indexes);
+        if (estimate >= threshold) {
+            if (hotKeys.containsKey(key) || hotKeys.size() < maxHotKeys) {
+                hotKeys.put(key, now);
+            }
+            return true;
+        }
+        return isHot(key);
+    }
+
+    /**
+     * 判断是否是热点，超过一个完整的统计周期没有再被判定为热点的key自动降级
+     */
+    public boolean isHot(String key) {
+        Long lastHotTime = hotKeys.get(key);
+        if (lastHotTime == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastHotTime > windowMillis * windows.length) {
+            hotKeys.remove(key, lastHotTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 估算key最近的访问次数
+     */
+    public long estimate(String key) {
+        return estimate(indexes(key));
+    }
+
+    /**
+     * 当前的热点key和估算的访问次数，按访问次数从高到低排列
+     */
+    public Map<String, Long> getHotKeys() {
+        List<String> keys = new ArrayList<>(hotKeys.keySet());
+        keys.removeIf(key -> !isHot(key));
+        Map<String, Long> result = new LinkedHashMap<>();
+        keys.stream()
+                .sorted(Comparator.comparingLong((String key) -> estimate(indexes(key))).reversed())
+                .forEach(key -> result.put(key, estimate(indexes(key))));
+        return result;
+    }
+
+    /**
+     * 时间进入新的窗口时，把中间经过的窗口清零
+     * @return 当前窗口编号
+     */
+    private long slide(long now) {
+        long window = now / windowMillis;
+        if (window == currentWindow) {
+            return window;
+        }
+        synchronized (this) {
+            long current = currentWindow;
+            if (window > current) {
+                //最多清空全部窗口
+                long from = Math.max(current + 1, window - windows.length + 1);
+                for (long w = from; w <= window; w++) {
+                    AtomicIntegerArray sketch = windows[(int) (w % windows.length)];
+                    for (int i = 0; i < sketch.length(); i++) {
+                        sketch.set(i, 0);
+                    }
+                }
+                currentWindow = window;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * 每一行取所有窗口之和，再取各行的最小值，乘以采样率还原成实际访问次数
+     */
+    private long estimate(int[] indexes) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            long sum = 0;
+            for (AtomicIntegerArray sketch : windows) {
+                sum += sketch.get(indexes[i]);
+            }
+            min = Math.min(min, sum);
+        }
+        return min * sampleRate;
+    }
+
+    /**
+     * 用两个哈希值组合出每一行的列
+     */
+    private static int[] indexes(String key) {
+        int h1 = key.hashCode();
+        int h2 = (h1 >>> 16) | (h1 << 16);
+        h2 = h2 * 0x9E3779B9 + 1;
+        int[] indexes = new int[DEPTH];
+        for (int i = 0; i < DEPTH; i++) {
+            int combined = h1 + i * h2;
+            indexes[i] = i * WIDTH + ((combined & Integer.MAX_VALUE) % WIDTH);
+        }
+        return indexes;
+    }
+}
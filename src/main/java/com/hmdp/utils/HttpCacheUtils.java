@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP缓存：ETag、If-None-Match和Cache-Control
+ * 数据没变时返回304，客户端用本地的副本；过期后一段时间内客户端可以先用旧数据，同时在后台重新验证
+ */
+public class HttpCacheUtils {
+
+    //店铺详情：短时间内直接用，之后可以先用旧数据再后台验证
+    public static final CacheControl SHOP_CACHE_CONTROL = CacheControl
+            .maxAge(SystemConstants.SHOP_MAX_AGE, TimeUnit.SECONDS)
+            .staleWhileRevalidate(SystemConstants.SHOP_STALE_WHILE_REVALIDATE, TimeUnit.SECONDS)
+            .cachePublic();
+    //店铺类型很少变化
+    public static final CacheControl SHOP_TYPE_CACHE_CONTROL = CacheControl
+            .maxAge(SystemConstants.SHOP_TYPE_MAX_AGE, TimeUnit.SECONDS)
+            .staleWhileRevalidate(SystemConstants.SHOP_TYPE_STALE_WHILE_REVALIDATE, TimeUnit.SECONDS)
+            .cachePublic();
+
+    /**
+     * 根据id和更新时间生成弱ETag，内容相同的数据不一定逐字节相同，所以用弱ETag
+     */
+    public static String etag(Object id, LocalDateTime updateTime) {
+        long version = updateTime == null ? 0 : updateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return etag(id + "-" + version);
+    }
+
+    public static String etag(String version) {
+        return "W/\"" + version + "\"";
+    }
+
+    /**
+     * 判断请求头If-None-Match中是否有这个ETag，按弱比较，忽略W/前缀
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (StrUtil.isBlank(ifNoneMatch) || etag == null) {
+            return false;
+        }
+        String expected = strip(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if ("*".equals(value) || expected.equals(strip(value))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String strip(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * 304，没有响应体
+     */
+    public static <T> ResponseEntity<T> notModified(String etag, CacheControl cacheControl) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+    }
+
+    /**
+     * 200，带上ETag和缓存策略；失败的结果不缓存
+     */
+    public static ResponseEntity<Result> ok(Result result, String etag, CacheControl cacheControl) {
+        if (!Boolean.TRUE.equals(result.getSuccess()) || etag == null) {
+            return ResponseEntity.ok().cacheControl(CacheControl.noStore()).body(result);
+        }
+        return ResponseEntity.ok().eTag(etag).cacheControl(cacheControl).body(result);
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * 锁的基本接口
  * @author ZhaiLibo
@@ -7,14 +9,21 @@ package com.hmdp.utils;
  */
 public interface ILock {
     /**
-     * 尝试获取锁
+     * 尝试获取锁，不等待，同一个线程可以重入
      * @param timeoutSec 所持有的超时时间，过期后自动释放
      * @return true代表获取锁成功，false代表获取锁失败
      */
     boolean tryLock(Long timeoutSec);
 
     /**
-     * 释放锁
+     * 获取锁，被占用时等待释放，同一个线程可以重入；持有期间自动续期，直到unlock
+     * @param waitTime 最多等待多久
+     * @return true代表获取锁成功，false代表等待超时
+     */
+    boolean lock(long waitTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 释放锁，重入几次就要释放几次
      */
     void unlock();
 }
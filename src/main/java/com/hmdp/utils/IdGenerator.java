@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器
+ */
+public interface IdGenerator {
+    /**
+     * 生成下一个id
+     * @param keyPrefix 业务前缀，例如order
+     * @return 趋势递增的id
+     */
+    long nextId(String keyPrefix);
+}
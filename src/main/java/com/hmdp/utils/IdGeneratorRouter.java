@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import static com.hmdp.utils.SystemConstants.SNOWFLAKE_ID_PREFIXES;
+
+/**
+ * 按业务前缀选择id生成器：SNOWFLAKE_ID_PREFIXES中的用雪花id，其他的用Redis号段（一天一个计数器）
+ */
+@Component
+public class IdGeneratorRouter implements IdGenerator {
+
+    private final IdGenerator snowflake;
+    private final IdGenerator redisSegment;
+
+    public IdGeneratorRouter(SnowflakeIdGenerator snowflakeIdGenerator, RedisIdWorker redisIdWorker) {
+        this.snowflake = snowflakeIdGenerator;
+        this.redisSegment = redisIdWorker::nextSegmentId;
+    }
+
+    public IdGenerator get(String keyPrefix) {
+        return SNOWFLAKE_ID_PREFIXES.contains(keyPrefix) ? snowflake : redisSegment;
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        return get(keyPrefix).nextId(keyPrefix);
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * 进程内的变更来源，由应用自己的写操作发布变更，也可以在测试中代替binlog
+ * 和binlog一样只发布已经提交的变更：在事务中发布时，等事务提交之后才放入队列
+ */
+@Slf4j
+@Component
+public class InMemoryChangeEventSource implements ChangeEventSource {
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private final BlockingQueue<RowChange> queue = new LinkedBlockingQueue<>();
+    private ExecutorService executor;
+
+    @Override
+    public synchronized void start(Consumer<List<RowChange>> handler) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    //1.阻塞等待第一条，再把队列中已有的一起取出来
+                    List<RowChange> changes = new ArrayList<>();
+                    changes.add(queue.take());
+                    queue.drainTo(changes, MAX_BATCH_SIZE - 1);
+                    //2.交给处理器
+                    handler.accept(changes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("处理数据变更异常", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * 发布一条变更
+     */
+    public void publish(RowChange change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    queue.offer(change);
+                }
+            });
+            return;
+        }
+        queue.offer(change);
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * 进程内的一级缓存（L1），放在Redis前面，热点数据直接从堆内返回，不走网络也不用反序列化
+ * 容量满了按写入顺序淘汰最早的，同时每条数据有过期时间
+ * 查询只读ConcurrentHashMap，不加锁；写入顺序记在一个LinkedHashMap中，写入、删除和淘汰时加锁一起修改两张表
+ */
+public class LocalCache<V> {
+
+    private final int maximumSize;
+    private final long ttlMillis;
+
+    //查询用，只在持有锁时修改
+    private final ConcurrentHashMap<String, Entry<V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    //按写入顺序排列，重新写入时先删除再插入，移到队尾；超出容量时淘汰队头
+    private final LinkedHashMap<String, Entry<V>> writeOrder;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public LocalCache(int maximumSize, long ttl, TimeUnit unit) {
+        this.maximumSize = maximumSize;
+        this.ttlMillis = unit.toMillis(ttl);
+        this.writeOrder = new LinkedHashMap<String, Entry<V>>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                if (size() > LocalCache.this.maximumSize) {
+                    map.remove(eldest.getKey(), eldest.getValue());
+                    evictionCount.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 查询本地缓存，命中时不加锁
+     * @param key
+     * @return 不存在或已过期返回null
+     */
+    public V get(String key) {
+        Entry<V> entry = map.get(key);
+        if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+            //过期了，删除；期间被重新写入的不删
+            lock.lock();
+            try {
+                if (writeOrder.remove(key, entry)) {
+                    map.remove(key, entry);
+                    evictionCount.increment();
+                }
+            } finally {
+                lock.unlock();
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.value;
+    }
+
+    public void put(String key, V value) {
+        Entry<V> entry = new Entry<>(value, System.currentTimeMillis() + ttlMillis);
+        lock.lock();
+        try {
+            //超出容量时在插入后按写入顺序淘汰
+            writeOrder.remove(key);
+            writeOrder.put(key, entry);
+            map.put(key, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(String key) {
+        lock.lock();
+        try {
+            writeOrder.remove(key);
+            map.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除所有满足条件的key
+     */
+    public void invalidateIf(Predicate<String> predicate) {
+        lock.lock();
+        try {
+            writeOrder.keySet().removeIf(predicate);
+            map.keySet().removeIf(predicate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            writeOrder.clear();
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expireAt;
+
+        private Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 记录最近查询过、数据库中不存在的id，代替每个id一个空值key，解决缓存穿透
+ * 时间按空值的有效期分桶，每个桶按id分成若干个Redis set：cache:miss:{前缀}{桶}:{分片}
+ * 写入时同时写当前桶和下一个桶，查询只查当前桶，所以一个id会被记住 有效期~2倍有效期
+ * 分片足够多时每个set都很小，数字id会用intset编码，每个id只占8个字节，而一个空值key要上百个字节
+ * 本地还有一份镜像，同一个不存在的id反复查询时不用访问Redis
+ */
+public class MissSet {
+
+    private final String keyPrefix;
+    private final long bucketMillis;
+    private final StringRedisTemplate stringRedisTemplate;
+    //本地镜像，只记录存在的情况，没有记录的还要查Redis
+    private final LocalCache<Boolean> mirror;
+
+    public MissSet(String keyPrefix, StringRedisTemplate stringRedisTemplate) {
+        this.keyPrefix = keyPrefix;
+        this.bucketMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.mirror = new LocalCache<>(CACHE_MISS_LOCAL_SIZE, CACHE_NULL_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 只查本地镜像
+     */
+    public boolean containsLocal(String id) {
+        return mirror.get(id) != null;
+    }
+
+    /**
+     * 判断id最近是否查询过并且不存在
+     */
+    public boolean contains(String id) {
+        if (mirror.get(id) != null) {
+            return true;
+        }
+        Boolean member = stringRedisTemplate.opsForSet().isMember(key(currentBucket(), id), id);
+        if (Boolean.TRUE.equals(member)) {
+            mirror.put(id, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 批量判断，一次管道查询Redis
+     * @return 其中最近查询过并且不存在的id
+     */
+    public Set<String> containsAll(List<String> ids) {
+        Set<String> result = new HashSet<>();
+        List<String> remoteIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            if (mirror.get(id) != null) {
+                result.add(id);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        long bucket = currentBucket();
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String id : remoteIds) {
+                conn.sIsMember(key(bucket, id), id);
+            }
+            return null;
+        });
+        for (int i = 0; i < remoteIds.size(); i++) {
+            if (Boolean.TRUE.equals(members.get(i))) {
+                result.add(remoteIds.get(i));
+                mirror.put(remoteIds.get(i), Boolean.TRUE);
+            }
+        }
+        return result;
+    }
+
+    public void add(String id) {
+        addAll(Collections.singletonList(id));
+    }
+
+    /**
+     * 记录不存在的id，写入当前桶和下一个桶，按分片合并成一条SADD
+     */
+    public void addAll(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        long bucket = currentBucket();
+        Map<String, List<String>> byKey = new HashMap<>();
+        for (String id : ids) {
+            mirror.put(id, Boolean.TRUE);
+            byKey.computeIfAbsent(key(bucket, id), k -> new ArrayList<>()).add(id);
+            byKey.computeIfAbsent(key(bucket + 1, id), k -> new ArrayList<>()).add(id);
+        }
+        //桶的有效期覆盖到它作为下一个桶被写入、再作为当前桶被查询结束
+        long ttlSeconds = TimeUnit.MILLISECONDS.toSeconds(bucketMillis * 2) + 60;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<String, List<String>> entry : byKey.entrySet()) {
+                conn.sAdd(entry.getKey(), entry.getValue().toArray(new String[0]));
+                conn.expire(entry.getKey(), ttlSeconds);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 数据新增了，从当前桶和下一个桶中删除，本地镜像也删除
+     */
+    public void remove(String id) {
+        mirror.invalidate(id);
+        long bucket = currentBucket();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.sRem(key(bucket, id), id);
+            conn.sRem(key(bucket + 1, id), id);
+            return null;
+        });
+    }
+
+    /**
+     * 只删除本地镜像，其他节点删除时通过广播调用
+     */
+    public void removeLocal(String id) {
+        mirror.invalidate(id);
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public LocalCache<Boolean> getMirror() {
+        return mirror;
+    }
+
+    private long currentBucket() {
+        return System.currentTimeMillis() / bucketMillis;
+    }
+
+    private String key(long bucket, String id) {
+        return CACHE_MISS_KEY + keyPrefix + bucket + ":" + shard(id);
+    }
+
+    /**
+     * 数字id直接取模，连续的id均匀分到各个分片
+     */
+    private static long shard(String id) {
+        long hash;
+        try {
+            hash = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            hash = id.hashCode();
+        }
+        return Math.floorMod(hash, CACHE_MISS_SHARDS);
+    }
+}
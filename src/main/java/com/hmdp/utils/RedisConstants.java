@@ -6,15 +6,133 @@ public class RedisConstants {
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
 
+    //缓存key的公共前缀，重建缓存的锁名是去掉它之后的部分
+    public static final String CACHE_KEY_PREFIX = "cache:";
     public static final Long CACHE_NULL_TTL = 2L;
+    //查询过但不存在的id，按前缀和时间分桶记录，代替每个id一个空值key
+    public static final String CACHE_MISS_KEY = "cache:miss:";
+    public static final int CACHE_MISS_SHARDS = 4096;
+    public static final int CACHE_MISS_LOCAL_SIZE = 100000;
+    //true:支持的实体用二进制编码写入缓存，false:全部用JSON；读取时两种格式都支持
+    public static final boolean CACHE_BINARY_CODEC = true;
+    //写缓存时过期时间随机增加的最大比例
+    public static final double CACHE_TTL_JITTER_RATIO = 0.1;
+    //提前刷新的力度，越大越提前
+    public static final double XFETCH_BETA = 1.0;
+    //没有记录重建耗时的缓存，默认按100毫秒算
+    public static final long XFETCH_DEFAULT_DELTA = 100L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final int CACHE_SHOP_LOCAL_SIZE = 1000;
+    public static final Long CACHE_SHOP_LOCAL_TTL = 10L;
+
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    //店铺类型整个列表一个key，后面拼上版本号；修改店铺类型时版本号加一，并广播新的版本号
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shopType:all:";
+    public static final Long CACHE_SHOP_TYPE_TTL = 1440L;
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shopType:version";
+    public static final String CACHE_SHOP_TYPE_CHANNEL = "cache:shopType:changed";
+    //广播丢失时兜底，最多隔这么久检查一次版本号
+    public static final long CACHE_SHOP_TYPE_CHECK_MILLIS = 30000L;
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_BLOG_KEY = "bloom:blog";
+    public static final long BLOOM_EXPECTED_INSERTIONS = 1000000L;
+    public static final double BLOOM_FPP = 0.01;
+    //true:布隆过滤器存在Redis中所有节点共享，false:每个节点进程内各自一份
+    public static final boolean BLOOM_SHARED = false;
+    //本地模式下新增的id广播给所有节点，消息是 前缀+id
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
+    //启动时缓存预热：每页条数、热门笔记条数、并行线程数、最长等待时间（秒）
+    public static final int WARMUP_PAGE_SIZE = 500;
+    public static final int WARMUP_HOT_BLOG_COUNT = 1000;
+    public static final int WARMUP_THREADS = 4;
+    public static final Long WARMUP_TIMEOUT = 120L;
+
+    //热点key探测：统计最近 窗口个数*窗口时长 内的访问次数，每SAMPLE_RATE次采样一次，超过THRESHOLD次算热点
+    public static final int HOT_KEY_WINDOW_COUNT = 5;
+    public static final long HOT_KEY_WINDOW_MILLIS = 1000L;
+    public static final int HOT_KEY_SAMPLE_RATE = 10;
+    public static final long HOT_KEY_THRESHOLD = 2000L;
+    public static final int HOT_KEY_MAX = 100;
+    //热点key本地副本的有效期（秒），其他节点修改后最多读到这么久的旧数据
+    public static final Long HOT_KEY_REPLICA_TTL = 2L;
+    //sorted set成员数不超过这个值才整个复制到本地
+    public static final long HOT_KEY_ZSET_MAX_SIZE = 10000L;
+
+    //数据变更事件合并的时间窗口（毫秒），窗口内同一行的多次变更只处理一次
+    public static final long CHANGE_FLUSH_MILLIS = 100L;
+    //延迟双删的延迟时间（毫秒）
+    public static final long CACHE_DOUBLE_DELETE_DELAY = 500L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
+
+    //缓存重建线程池：线程数、排队上限、队列满时的处理方式
+    public static final int CACHE_REBUILD_THREADS = 10;
+    public static final int CACHE_REBUILD_QUEUE_CAPACITY = 1000;
+    public static final CacheRebuildExecutor.RejectPolicy CACHE_REBUILD_REJECT_POLICY =
+            CacheRebuildExecutor.RejectPolicy.DISCARD;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    //分布式锁：不指定有效期时由看门狗续期，有效期（秒），每过三分之一续一次；完全释放时在频道上通知等待的线程
+    public static final Long LOCK_WATCHDOG_TTL = 30L;
+    public static final String LOCK_CHANNEL_PREFIX = "lock:channel:";
+    //创建订单的分段锁 lock:{order}:stripe:{段号}，hash tag让一批段在集群的同一个槽，所有段共用一个解锁频道
+    public static final String LOCK_ORDER_STRIPE = "{order}:stripe:";
+    public static final String LOCK_ORDER_STRIPE_CHANNEL = "lock:channel:order:stripe";
+
+    //雪花id的机器号：启动时租用一个，有效期（秒）内定时续期，节点挂了之后自动释放
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 30L;
+    //没拿到重建锁时最多等几轮、一共等多久（毫秒），超过后直接查数据库，不让请求一直挂着
+    public static final int MUTEX_MAX_WAIT_TIMES = 3;
+    public static final long MUTEX_MAX_WAIT_MILLIS = 500L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀信息，hash：begin开始时间 end结束时间（毫秒），seckill.lua在同一次执行中判断
+    public static final String SECKILL_INFO_KEY = "seckill:info:";
+    //分段库存：每张优惠券的段数，库存和已下单用户分成多个key，key中的hash tag让它们分布到集群的不同槽
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final int SECKILL_MAX_SEGMENTS = 64;
+    //创建分段库存的秒杀券时广播优惠券id，各节点删除本地缓存的段数（可能缓存了没有分段）
+    public static final String SECKILL_SEGMENTS_CHANNEL = "seckill:segments";
+    //卖完的秒杀券广播给所有节点，本地记录一段时间（秒），期间的请求不再访问Redis
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final Long SECKILL_SOLD_OUT_TTL = 5L;
+    //准入令牌桶：每个窗口（毫秒）最多放行 剩余库存*倍数 个请求，窗口结束时按最新的剩余库存调整
+    public static final long SECKILL_ADMIT_WINDOW_MILLIS = 1000L;
+    public static final int SECKILL_ADMIT_FACTOR = 2;
+    //正在运行的节点，zset：节点标示 -> 最近一次心跳的时间（毫秒），准入的容量按节点数平分
+    public static final String SECKILL_NODES_KEY = "seckill:nodes";
+    //对账：每张秒杀券的SSCAN游标、已核对到的订单id、Redis中有但数据库中没有的用户（下一轮还没有才重放）
+    public static final String SECKILL_RECONCILE_CURSOR_KEY = "seckill:reconcile:cursor:";
+    public static final String SECKILL_RECONCILE_LAST_ID_KEY = "seckill:reconcile:lastId:";
+    public static final String SECKILL_RECONCILE_SUSPECT_KEY = "seckill:reconcile:suspect:";
+    //对账重放次数，hash：userId -> 次数，超过上限的转入死信队列，不再重放
+    public static final String SECKILL_RECONCILE_REPLAY_KEY = "seckill:reconcile:replay:";
+    public static final Long SECKILL_RECONCILE_TTL = 1L;
+    public static final String LOCK_SECKILL_RECONCILE = "seckill:reconcile";
+    //秒杀订单的消息队列：秒杀有购买资格后写入，消费者组读取，确认之前节点挂了也不会丢
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //投递多次仍然处理失败的订单转入死信队列
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final int SECKILL_ORDER_MAX_DELIVERIES = 5;
+    //读取时最多阻塞多久（秒）
+    public static final Long SECKILL_ORDER_BLOCK = 2L;
+    //超过多久（秒）没有确认的消息由其他消费者认领，每隔多久（秒）认领一次
+    public static final Long SECKILL_ORDER_CLAIM_IDLE = 60L;
+    public static final Long SECKILL_ORDER_CLAIM_INTERVAL = 30L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
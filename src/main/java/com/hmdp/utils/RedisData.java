@@ -11,4 +11,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    //重建这条缓存花费的毫秒数，提前刷新时使用
+    private Long delta;
 }
@@ -3,16 +3,27 @@ package com.hmdp.utils;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.SystemConstants.ID_SEGMENT_LOW_WATER;
+import static com.hmdp.utils.SystemConstants.ID_SEGMENT_STEP;
 
 /**
  * @author ZhaiLibo
  * @date 2023/5/1 -10:13
  */
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
     /**
      * 开始时间戳
      */
@@ -21,13 +32,30 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    //线程安全，不用每次创建
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
     private StringRedisTemplate stringRedisTemplate;
 
+    //号段模式：每个业务前缀一个缓冲，后台线程提前申请下一个号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     //构造方法注入，应该在Spring学过
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate){
         this.stringRedisTemplate=stringRedisTemplate;
     }
 
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    @Override
     public long nextId(String keyPrefix){
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -37,7 +65,7 @@ public class RedisIdWorker {
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
 
         // 2.2.自增长，z精确到天，一天一个key，避免超过32位的上限
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
@@ -45,4 +73,114 @@ public class RedisIdWorker {
         // 3.拼接并返回，移32位，再或运算,就是让时间提到前面吧//不是特别理解这一段
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 号段模式：用INCRBY一次申请一段序列号，在本地用AtomicLong分配，大多数调用不访问Redis
+     * 和nextId用同一个key，两种方式生成的id不会重复；同一个节点上id单调递增
+     * 号段只在申请它的那一天使用，跨天后从新的key申请，序列号不会和当天其他节点的重复
+     */
+    public long nextSegmentId(String keyPrefix) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            //1.生成时间戳，用的是本地时间的秒数，除以一天的秒数就是本地日期
+            long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+            long timestamp = nowSecond - BEGIN_TIMESTAMP;
+            long day = nowSecond / SECONDS_PER_DAY;
+            //2.从当天的号段中取序列号
+            Segment segment = buffer.current;
+            if (segment == null || segment.day != day) {
+                segment = buffer.switchSegment(segment, day);
+                //其他线程已经换成了第二天的号段，重新取时间
+                if (segment.day != day) {
+                    continue;
+                }
+            }
+            long count = segment.next.getAndIncrement();
+            if (count <= segment.end) {
+                //2.1.剩余数量到达低水位，由恰好取到这个序列号的线程触发预取，只触发一次
+                if (segment.end - count == segment.lowWater) {
+                    buffer.prefetch(segment.day);
+                }
+                //3.拼接并返回
+                return timestamp << COUNT_BITS | count;
+            }
+            //2.2.号段用完了，换成预取的号段再取
+            buffer.switchSegment(segment, day);
+        }
+    }
+
+    /**
+     * 申请一个号段 INCRBY icr:{prefix}:{yyyy:MM:dd} step
+     */
+    private Segment lease(String keyPrefix, long day) {
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, ID_SEGMENT_STEP);
+        if (end == null) {
+            throw new IllegalStateException("申请号段失败, keyPrefix=" + keyPrefix);
+        }
+        return new Segment(day, end - ID_SEGMENT_STEP + 1, end);
+    }
+
+    /**
+     * 号段：[start, end]，next是下一个要分配的序列号
+     */
+    private static class Segment {
+        private final long day;
+        private final long start;
+        private final AtomicLong next;
+        private final long end;
+        private final long lowWater;
+
+        private Segment(long day, long start, long end) {
+            this.day = day;
+            this.start = start;
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.lowWater = (end - start + 1) * ID_SEGMENT_LOW_WATER / 100;
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：正在用的号段和预取的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private void prefetch(long day) {
+            next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, day), prefetchExecutor);
+        }
+
+        /**
+         * 当前号段用完了或者跨天了，换成预取的号段；没有预取、预取失败或者不是当天的，同步申请
+         * 预取和同步申请可能同时执行，预取到的号段比当前的小时丢弃，保证单调递增
+         * 只有第一个到达的线程去换，其他线程发现已经换过了直接返回
+         */
+        private synchronized Segment switchSegment(Segment exhausted, long day) {
+            Segment segment = current;
+            if (segment != exhausted && segment != null && segment.day >= day) {
+                return segment;
+            }
+            CompletableFuture<Segment> prefetched = next;
+            next = null;
+            Segment loaded = null;
+            if (prefetched != null) {
+                try {
+                    loaded = prefetched.join();
+                } catch (Exception e) {
+                    //预取失败，下面同步申请
+                }
+            }
+            if (loaded == null || loaded.day != day || (segment != null && loaded.start <= segment.end)) {
+                loaded = lease(keyPrefix, day);
+            }
+            current = loaded;
+            return loaded;
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * 一行数据的变更，对应binlog中的一条行事件，列名和数据库一致（下划线）
+ */
+@Data
+public class RowChange {
+
+    public enum Type {
+        INSERT, UPDATE, DELETE
+    }
+
+    private String table;
+    private Type type;
+    private Long id;
+    //变更前的列，INSERT时为null；应用自己发出的UPDATE事件可能没有
+    private Map<String, Object> before;
+    //变更后的列，DELETE时为null；应用自己发出的UPDATE事件可能只有修改了的列
+    private Map<String, Object> after;
+
+    /**
+     * 用实体对象创建变更事件，属性名转成下划线形式的列名，值为null的属性不包含在内
+     */
+    public static RowChange of(String table, Type type, Long id, Object before, Object after) {
+        RowChange change = new RowChange();
+        change.setTable(table);
+        change.setType(type);
+        change.setId(id);
+        change.setBefore(before == null ? null : BeanUtil.beanToMap(before, true, true));
+        change.setAfter(after == null ? null : BeanUtil.beanToMap(after, true, true));
+        return change;
+    }
+}
@@ -0,0 +1,221 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.SECKILL_NODE_HEARTBEAT;
+import static com.hmdp.utils.SystemConstants.SECKILL_NODE_TTL;
+
+/**
+ * 秒杀请求进入Redis之前的两道关卡，都在本节点内存中判断
+ * 1.卖完标记：Lua脚本返回库存不足时记下来并广播，所有节点之后的请求直接返回，不再生成订单id、执行脚本
+ *   标记有有效期，库存被补回来之后最多这么久恢复
+ * 2.准入令牌桶：所有节点每张券每个窗口一共最多放行 剩余库存*倍数 个请求，每个节点按存活的节点数平分，
+ *   剩余库存每个窗口从Redis读一次，多出来的请求直接拒绝；库存key不存在时不知道剩余多少，不限制，交给脚本判断
+ * 另外提供秒杀信息 seckill:info:{id}（开始、结束时间）的写入，和分段库存秒杀券的时间判断
+ */
+@Slf4j
+@Component
+public class SeckillGate {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SegmentedStock segmentedStock;
+    //卖完的秒杀券，key是优惠券id
+    private final LocalCache<Boolean> soldOut = new LocalCache<>(10000, SECKILL_SOLD_OUT_TTL, TimeUnit.SECONDS);
+    //每张秒杀券一个令牌桶
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+    //秒杀券的开始、结束时间，创建之后不再变化
+    private final LocalCache<long[]> windows = new LocalCache<>(10000, 1L, TimeUnit.MINUTES);
+    //本节点的标示，写在SECKILL_NODES_KEY中
+    private final String instanceId = UUID.randomUUID().toString(true);
+    //存活的节点数，心跳时更新
+    private volatile long liveNodes = 1;
+
+    public SeckillGate(StringRedisTemplate stringRedisTemplate, SegmentedStock segmentedStock,
+                       RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentedStock = segmentedStock;
+        //订阅其他节点发现的卖完的秒杀券
+        listenerContainer.addMessageListener(
+                (message, pattern) -> soldOut.put(new String(message.getBody(), StandardCharsets.UTF_8), Boolean.TRUE),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        heartbeat();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        stringRedisTemplate.opsForZSet().remove(SECKILL_NODES_KEY, instanceId);
+    }
+
+    /**
+     * 记录本节点的心跳，删除超时的节点，统计存活的节点数
+     */
+    @Scheduled(fixedDelay = SECKILL_NODE_HEARTBEAT)
+    public void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().add(SECKILL_NODES_KEY, instanceId, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_NODES_KEY, 0, now - SECKILL_NODE_TTL);
+            Long count = stringRedisTemplate.opsForZSet().zCard(SECKILL_NODES_KEY);
+            liveNodes = count == null ? 1 : Math.max(1, count);
+        } catch (Exception e) {
+            //Redis暂时不可用，继续用上次的节点数
+            log.error("秒杀节点心跳失败", e);
+        }
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.get(voucherId.toString()) != null;
+    }
+
+    /**
+     * 记录卖完了，并广播给其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        soldOut.put(voucherId.toString(), Boolean.TRUE);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 获取准入令牌
+     * @return false表示请求太多，直接拒绝
+     */
+    public boolean tryAcquire(Long voucherId) {
+        long now = System.currentTimeMillis();
+        //第一次使用时按剩余库存创建，同一张券的其他线程等它创建完
+        TokenBucket bucket = buckets.computeIfAbsent(voucherId, id -> {
+            TokenBucket created = new TokenBucket();
+            created.resize(capacity(remaining(id)), now);
+            return created;
+        });
+        //1.超过一个窗口，由一个线程按最新的剩余库存调整容量，其他线程继续用旧的容量
+        if (now - bucket.resizeTime >= SECKILL_ADMIT_WINDOW_MILLIS && bucket.resizing.compareAndSet(false, true)) {
+            try {
+                long remaining = remaining(voucherId);
+                bucket.resize(capacity(remaining), now);
+                if (remaining == 0) {
+                    soldOut.put(voucherId.toString(), Boolean.TRUE);
+                }
+            } finally {
+                bucket.resizing.set(false);
+            }
+        }
+        //2.取令牌
+        return bucket.tryAcquire(now);
+    }
+
+    /**
+     * 秒杀信息的hash字段，时间保存为毫秒，seckill.lua直接和当前时间比较
+     */
+    public static Map<String, String> info(LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> info = new HashMap<>(4);
+        info.put("begin", String.valueOf(beginTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        info.put("end", String.valueOf(endTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        return info;
+    }
+
+    /**
+     * 判断秒杀时间，分段库存的秒杀券用；不分段的在seckill.lua中判断
+     * @return SegmentedStock.SUCCESS、NOT_STARTED或ENDED
+     */
+    public int checkWindow(Long voucherId, long now) {
+        String key = voucherId.toString();
+        long[] window = windows.get(key);
+        if (window == null) {
+            //没有秒杀信息的不限制时间
+            List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_INFO_KEY + voucherId,
+                    Arrays.asList("begin", "end"));
+            window = new long[]{
+                    values.get(0) == null ? Long.MIN_VALUE : Long.parseLong((String) values.get(0)),
+                    values.get(1) == null ? Long.MAX_VALUE : Long.parseLong((String) values.get(1))};
+            windows.put(key, window);
+        }
+        if (now < window[0]) {
+            return SegmentedStock.NOT_STARTED;
+        }
+        if (now > window[1]) {
+            return SegmentedStock.ENDED;
+        }
+        return SegmentedStock.SUCCESS;
+    }
+
+    /**
+     * 剩余库存，分段的秒杀券是所有段之和
+     * @return 库存key不存在返回-1
+     */
+    private long remaining(Long voucherId) {
+        int segments = segmentedStock.getSegments(voucherId);
+        if (segments > 0) {
+            return segmentedStock.remaining(voucherId, segments);
+        }
+        String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        return stock == null ? -1 : Math.max(0, Long.parseLong(stock));
+    }
+
+    /**
+     * 本节点的令牌桶容量：剩余库存*倍数 按节点数平分，向上取整
+     * @return 剩余库存不知道时返回-1，不限制
+     */
+    private long capacity(long remaining) {
+        if (remaining < 0) {
+            return -1;
+        }
+        long nodes = liveNodes;
+        return (remaining * SECKILL_ADMIT_FACTOR + nodes - 1) / nodes;
+    }
+
+    /**
+     * 令牌桶：按容量/窗口的速率持续补充令牌，最多补到容量；容量小于0时不限制
+     */
+    private static class TokenBucket {
+        private volatile long capacity;
+        private double tokens;
+        private long refillTime;
+        private volatile long resizeTime;
+        private final AtomicBoolean resizing = new AtomicBoolean();
+
+        private synchronized void resize(long capacity, long now) {
+            //第一次创建、从0或者不限制恢复时装满，之后超出新容量的令牌作废
+            this.tokens = this.capacity <= 0 ? capacity : Math.min(tokens, capacity);
+            this.capacity = capacity;
+            this.refillTime = now;
+            this.resizeTime = now;
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            if (capacity < 0) {
+                return true;
+            }
+            tokens = Math.min(capacity, tokens + (double) (now - refillTime) * capacity / SECKILL_ADMIT_WINDOW_MILLIS);
+            refillTime = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.*;
+
+/**
+ * 秒杀对账：Redis中的已下单用户、库存和数据库中的订单、库存对不上时修正
+ * 1.数据库 -> Redis：按订单id分页，数据库中有但Redis中没有的用户补回去，保证一人一单
+ * 2.Redis -> 数据库：SSCAN分批扫描已下单用户，数据库中没有订单的先记下来，下一轮还没有就重新写入消息队列
+ *   （消费失败被丢弃，或者脚本执行成功后节点挂了没写入消息队列）
+ * 3.扫描完一轮后按 数据库库存 + 订单数 校正Redis中的库存
+ * 每张券每次只处理几批，进度保存在Redis中，下次接着处理，不会把整个集合读到内存
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    private static final DefaultRedisScript<List> SSCAN_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_FIX_SCRIPT;
+
+    static {
+        SSCAN_SCRIPT = new DefaultRedisScript<>();
+        SSCAN_SCRIPT.setLocation(new ClassPathResource("sscan.lua"));
+        SSCAN_SCRIPT.setResultType(List.class);
+        STOCK_FIX_SCRIPT = new DefaultRedisScript<>();
+        STOCK_FIX_SCRIPT.setLocation(new ClassPathResource("stock_fix.lua"));
+        STOCK_FIX_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SegmentedStock segmentedStock;
+
+    @Resource
+    private IdGeneratorRouter idGeneratorRouter;
+
+    /**
+     * 定时对账还没结束、或者刚结束的秒杀券，多个节点只有一个在执行
+     * 一轮对账可能比调度间隔还长，用看门狗续期的lock，不等待；固定有效期的锁到期后别的节点会同时开始对账
+     */
+    @Scheduled(initialDelay = SECKILL_RECONCILE_INTERVAL, fixedDelay = SECKILL_RECONCILE_INTERVAL)
+    public void reconcile() {
+        ILock lock = new SimpleRedisLock(LOCK_SECKILL_RECONCILE, stringRedisTemplate);
+        try {
+            if (!lock.lock(0, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            long lastId = 0;
+            LocalDateTime since = LocalDateTime.now().minusHours(SECKILL_RECONCILE_GRACE_HOURS);
+            while (true) {
+                List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                        .select("voucher_id").gt("voucher_id", lastId).gt("end_time", since)
+                        .orderByAsc("voucher_id").last("limit " + SECKILL_RECONCILE_BATCH_SIZE).list();
+                if (vouchers.isEmpty()) {
+                    break;
+                }
+                for (SeckillVoucher voucher : vouchers) {
+                    try {
+                        reconcile(voucher.getVoucherId());
+                    } catch (Exception e) {
+                        log.error("秒杀对账失败, voucherId={}", voucher.getVoucherId(), e);
+                    }
+                }
+                lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 对账一张秒杀券，从上次的进度继续
+     */
+    public void reconcile(Long voucherId) {
+        int segments = segmentedStock.getSegments(voucherId);
+        // 1.数据库 -> Redis
+        int restored = restoreUsers(voucherId, segments);
+        // 2.Redis -> 数据库，分段库存的券依次扫描每一段
+        String cursorKey = SECKILL_RECONCILE_CURSOR_KEY + voucherId;
+        Map<Object, Object> state = stringRedisTemplate.opsForHash().entries(cursorKey);
+        int segment = state.containsKey("segment") ? Integer.parseInt((String) state.get("segment")) : 0;
+        String cursor = state.containsKey("cursor") ? (String) state.get("cursor") : "0";
+        int replayed = 0;
+        boolean passDone = false;
+        for (int i = 0; i < SECKILL_RECONCILE_MAX_BATCHES && !passDone; i++) {
+            String orderKey = segments > 0 ? SegmentedStock.orderKey(voucherId, segment) : SECKILL_ORDER_KEY + voucherId;
+            List<Object> result = stringRedisTemplate.execute(SSCAN_SCRIPT, Collections.singletonList(orderKey),
+                    cursor, String.valueOf(SECKILL_RECONCILE_BATCH_SIZE));
+            if (result == null || result.size() < 2) {
+                break;
+            }
+            cursor = (String) result.get(0);
+            replayed += replayMissing(voucherId, toStrings((List<?>) result.get(1)));
+            if ("0".equals(cursor)) {
+                segment++;
+                if (segment >= Math.max(segments, 1)) {
+                    segment = 0;
+                    passDone = true;
+                }
+            }
+        }
+        Map<String, String> next = new HashMap<>(4);
+        next.put("segment", String.valueOf(segment));
+        next.put("cursor", cursor);
+        stringRedisTemplate.opsForHash().putAll(cursorKey, next);
+        stringRedisTemplate.expire(cursorKey, SECKILL_RECONCILE_TTL, TimeUnit.DAYS);
+        // 3.扫描完一轮，校正库存；分段库存的券先记用户再去各段扣减，中间状态下总数对不上，不校正
+        long fixed = 0;
+        if (passDone && segments == 0) {
+            Long total = ((SeckillVoucherMapper) seckillVoucherService.getBaseMapper()).queryStockTotal(voucherId);
+            if (total != null) {
+                Long delta = stringRedisTemplate.execute(STOCK_FIX_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId), total.toString());
+                fixed = delta == null ? 0 : delta;
+            }
+        }
+        if (restored > 0 || replayed > 0 || fixed != 0) {
+            log.warn("秒杀对账, voucherId={}, 补回用户={}, 重放订单={}, 校正库存={}", voucherId, restored, replayed, fixed);
+        }
+    }
+
+    /**
+     * 数据库中有订单、Redis中没有的用户补回Redis，从上次核对到的订单id继续
+     * 订单id按时间递增，晚提交的小id订单可能被跳过，这些订单本来就是从Redis中来的
+     */
+    private int restoreUsers(Long voucherId, int segments) {
+        String lastIdKey = SECKILL_RECONCILE_LAST_ID_KEY + voucherId;
+        String value = stringRedisTemplate.opsForValue().get(lastIdKey);
+        long lastId = value == null ? 0 : Long.parseLong(value);
+        int restored = 0;
+        for (int i = 0; i < SECKILL_RECONCILE_MAX_BATCHES; i++) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id").eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + SECKILL_RECONCILE_BATCH_SIZE).list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            // 1.按用户所在的key分组，一个key一次SMISMEMBER
+            Map<String, List<String>> usersByKey = new HashMap<>();
+            for (VoucherOrder order : orders) {
+                String orderKey = segments > 0
+                        ? SegmentedStock.orderKey(voucherId, SegmentedStock.homeSegment(order.getUserId(), segments))
+                        : SECKILL_ORDER_KEY + voucherId;
+                usersByKey.computeIfAbsent(orderKey, k -> new ArrayList<>()).add(order.getUserId().toString());
+            }
+            // 2.补回不在Redis中的用户
+            for (Map.Entry<String, List<String>> entry : usersByKey.entrySet()) {
+                Map<Object, Boolean> members = stringRedisTemplate.opsForSet()
+                        .isMember(entry.getKey(), entry.getValue().toArray());
+                List<String> missing = new ArrayList<>();
+                for (String userId : entry.getValue()) {
+                    if (members == null || !Boolean.TRUE.equals(members.get(userId))) {
+                        missing.add(userId);
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    stringRedisTemplate.opsForSet().add(entry.getKey(), missing.toArray(new String[0]));
+                    restored += missing.size();
+                }
+            }
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+        stringRedisTemplate.opsForValue().set(lastIdKey, String.valueOf(lastId), SECKILL_RECONCILE_TTL, TimeUnit.DAYS);
+        return restored;
+    }
+
+    /**
+     * 这批用户中数据库里没有订单的：第一次发现先记下来，订单可能还在消息队列中；下一轮还没有就重新写入消息队列
+     * 重放的订单和原来的订单同时到达时，创建订单时按用户去重
+     * 每个用户最多重放SECKILL_RECONCILE_MAX_REPLAYS次，数据库一直拒绝的转入死信队列，之后不再处理
+     */
+    private int replayMissing(Long voucherId, List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        // 1.一次查询这批用户中已经有订单的
+        List<Object> orderedUserIds = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id").eq("voucher_id", voucherId).in("user_id", userIds));
+        Set<String> ordered = new HashSet<>();
+        for (Object userId : orderedUserIds) {
+            ordered.add(String.valueOf(userId));
+        }
+        List<String> missing = new ArrayList<>();
+        for (String userId : userIds) {
+            if (!ordered.contains(userId)) {
+                missing.add(userId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        // 2.已经超过重放次数、转入死信队列的跳过
+        String replayKey = SECKILL_RECONCILE_REPLAY_KEY + voucherId;
+        List<Object> replayCounts = stringRedisTemplate.opsForHash().multiGet(replayKey, new ArrayList<>(missing));
+        List<String> pending = new ArrayList<>(missing.size());
+        for (int i = 0; i < missing.size(); i++) {
+            Object count = replayCounts.get(i);
+            if (count == null || Integer.parseInt((String) count) <= SECKILL_RECONCILE_MAX_REPLAYS) {
+                pending.add(missing.get(i));
+            }
+        }
+        missing = pending;
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        // 3.上一轮已经记下的重放，其他的记下来
+        String suspectKey = SECKILL_RECONCILE_SUSPECT_KEY + voucherId;
+        Map<Object, Boolean> suspected = stringRedisTemplate.opsForSet().isMember(suspectKey, missing.toArray());
+        List<String> replay = new ArrayList<>();
+        List<String> suspects = new ArrayList<>();
+        for (String userId : missing) {
+            if (suspected != null && Boolean.TRUE.equals(suspected.get(userId))) {
+                replay.add(userId);
+            } else {
+                suspects.add(userId);
+            }
+        }
+        int replayed = 0;
+        for (String userId : replay) {
+            Long count = stringRedisTemplate.opsForHash().increment(replayKey, userId, 1);
+            Map<String, String> order = new HashMap<>(4);
+            order.put("userId", userId);
+            order.put("voucherId", voucherId.toString());
+            if (count != null && count > SECKILL_RECONCILE_MAX_REPLAYS) {
+                // 3.1.重放了这么多次还没有落库，转入死信队列人工处理
+                order.put("error", "对账重放" + SECKILL_RECONCILE_MAX_REPLAYS + "次仍未落库");
+                stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, order);
+                log.error("秒杀对账放弃重放, voucherId={}, userId={}", voucherId, userId);
+                continue;
+            }
+            order.put("id", String.valueOf(idGeneratorRouter.nextId("order")));
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, order);
+            replayed++;
+        }
+        if (!replay.isEmpty()) {
+            stringRedisTemplate.expire(replayKey, SECKILL_RECONCILE_TTL, TimeUnit.DAYS);
+            stringRedisTemplate.opsForSet().remove(suspectKey, replay.toArray());
+        }
+        if (!suspects.isEmpty()) {
+            stringRedisTemplate.opsForSet().add(suspectKey, suspects.toArray(new String[0]));
+            stringRedisTemplate.expire(suspectKey, SECKILL_RECONCILE_TTL, TimeUnit.DAYS);
+        }
+        return replayed;
+    }
+
+    private static List<String> toStrings(List<?> values) {
+        List<String> strings = new ArrayList<>(values.size());
+        for (Object value : values) {
+            strings.add(String.valueOf(value));
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 分段库存：超热门的秒杀券把库存拆成N段，每段是独立的key，分布到集群的不同槽，
+ * 不再是一个key、一个Lua执行线程承担整场秒杀
+ * 用户按id哈希到自己的段，一人一单在自己的段中判断；自己的段卖完了再依次去其他段扣减，扣减成功后才记下用户
+ * key：seckill:stock:{优惠券id:段} 和 seckill:order:{优惠券id:段}
+ */
+@Component
+public class SegmentedStock {
+
+    //判断购买资格的结果，和seckill.lua的返回值相同
+    public static final int SUCCESS = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+
+    private static final DefaultRedisScript<Long> SEGMENT_SCRIPT;
+    private static final DefaultRedisScript<Long> DECR_SCRIPT;
+
+    static {
+        SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SEGMENT_SCRIPT.setResultType(Long.class);
+        DECR_SCRIPT = new DefaultRedisScript<>();
+        DECR_SCRIPT.setLocation(new ClassPathResource("stock_decr.lua"));
+        DECR_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //每张优惠券的段数，创建之后不再变化；没有分段的缓存一小段时间，避免每次请求都查Redis
+    //创建分段的秒杀券之前就查过的节点缓存的是0，收到创建的广播时删除
+    private final LocalCache<Integer> segmentCounts = new LocalCache<>(10000, 1L, TimeUnit.MINUTES);
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> segmentCounts.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SEGMENTS_CHANNEL));
+    }
+
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 用户所属的段
+     */
+    public static int homeSegment(Long userId, int segments) {
+        return Math.floorMod(Long.hashCode(userId), segments);
+    }
+
+    /**
+     * 把库存平均分到各段，除不尽的余数分给前面的段
+     */
+    public void init(Long voucherId, int stock, int segments) {
+        if (segments < 1 || segments > SECKILL_MAX_SEGMENTS) {
+            throw new IllegalArgumentException("段数必须在1到" + SECKILL_MAX_SEGMENTS + "之间");
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < segments; i++) {
+                conn.set(stockKey(voucherId, i), String.valueOf(stock / segments + (i < stock % segments ? 1 : 0)));
+            }
+            conn.set(SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(segments));
+            return null;
+        });
+        segmentCounts.put(voucherId.toString(), segments);
+        //段数写入之后再通知其他节点重新查
+        stringRedisTemplate.convertAndSend(SECKILL_SEGMENTS_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * Redis清空后按数据库中的库存和段数重建：只写入不存在的key，已经扣减过的段不覆盖，避免超卖
+     */
+    public void restore(Long voucherId, int stock, int segments) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < segments; i++) {
+                conn.setNX(stockKey(voucherId, i), String.valueOf(stock / segments + (i < stock % segments ? 1 : 0)));
+            }
+            conn.setNX(SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(segments));
+            return null;
+        });
+        segmentCounts.put(voucherId.toString(), segments);
+        stringRedisTemplate.convertAndSend(SECKILL_SEGMENTS_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 优惠券的段数
+     * @return 0表示没有分段，库存在seckill:stock:{id}一个key中
+     */
+    public int getSegments(Long voucherId) {
+        String key = voucherId.toString();
+        Integer segments = segmentCounts.get(key);
+        if (segments == null) {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+            segments = value == null ? 0 : Integer.parseInt(value);
+            segmentCounts.put(key, segments);
+        }
+        return segments;
+    }
+
+    /**
+     * 判断购买资格并扣减库存
+     * @return SUCCESS、SOLD_OUT或DUPLICATE
+     */
+    public int trySeckill(Long voucherId, Long userId, int segments) {
+        //1.在自己的段中判断一人一单、扣减库存
+        int home = homeSegment(userId, segments);
+        String orderKey = orderKey(voucherId, home);
+        Long result = stringRedisTemplate.execute(SEGMENT_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey), userId.toString());
+        if (result == null || result != SOLD_OUT) {
+            return result == null ? SOLD_OUT : result.intValue();
+        }
+        //2.自己的段卖完了，依次去其他段扣减
+        for (int i = 1; i < segments; i++) {
+            int segment = (home + i) % segments;
+            String stockKey = stockKey(voucherId, segment);
+            Long decr = stringRedisTemplate.execute(DECR_SCRIPT, Collections.singletonList(stockKey));
+            if (decr != null && decr == SUCCESS) {
+                //2.1.扣减成功再记下用户，同一个用户的另一个请求已经记下了，说明是重复下单，库存还回去
+                Long added = stringRedisTemplate.opsForSet().add(orderKey, userId.toString());
+                if (added == null || added == 0) {
+                    stringRedisTemplate.opsForValue().increment(stockKey);
+                    return DUPLICATE;
+                }
+                return SUCCESS;
+            }
+        }
+        //3.所有段都卖完了，用户没有记下，可以再试
+        return SOLD_OUT;
+    }
+
+    /**
+     * 所有段剩余库存之和
+     * @return 所有段的库存key都不存在（还没预热、Redis被清空）返回-1，表示不知道
+     */
+    public long remaining(Long voucherId, int segments) {
+        List<String> keys = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long sum = 0;
+        boolean found = false;
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    found = true;
+                    sum += Math.max(0, Long.parseLong(value));
+                }
+            }
+        }
+        return found ? sum : -1;
+    }
+}
@@ -1,66 +1,259 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.LOCK_CHANNEL_PREFIX;
+import static com.hmdp.utils.RedisConstants.LOCK_WATCHDOG_TTL;
+
 /**
+ * 可重入的分布式锁：锁是一个hash，field是线程标示，value是重入次数
+ * 1.tryLock：不等待，有效期由调用方指定，不续期
+ * 2.lock：被占用时订阅解锁频道等待通知，最多等到锁的剩余有效期再重试；获取后由看门狗每过三分之一有效期续期一次
+ * 只有自己持有的锁才能释放（unlock.lua中判断线程标示），重入次数减到0时删除锁并通知等待的线程
+ * 也可以把多把锁当成一把，在一个脚本中全部获取，见StripedUserLock
+ * 有效期只在获取时传给脚本，实例上不保存，多个线程共用一个实例也不会互相覆盖
  * @author ZhaiLibo
  * @date 2023/5/4 -17:31
  */
+@Slf4j
 public class SimpleRedisLock implements ILock{
-    private String name;
+    private List<String> keys;
+    //解锁时通知等待的线程的频道
+    private String channel;
+    //续期任务的key：锁的key + 线程标示
+    private String renewalKey;
     private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer listenerContainer;
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    //订阅是异步生效的，刚订阅时错过的解锁通知最多让等待多花这么久（毫秒）
+    private static final long MAX_WAIT_SLICE_MILLIS = 1000L;
 
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
     static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
         UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
     }
 
+    //看门狗：所有锁共用一个线程续期
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, ScheduledFuture<?>> RENEWALS = new ConcurrentHashMap<>();
+    //本进程中等待同一把锁的线程共用一个订阅，key是解锁频道
+    private static final Map<String, Waiters> WAITERS = new ConcurrentHashMap<>();
+
     public SimpleRedisLock(String name,StringRedisTemplate stringRedisTemplate){
-        this.name=name;
+        this.keys=Collections.singletonList(KEY_PREFIX + name);
+        this.channel=LOCK_CHANNEL_PREFIX + name;
+        this.renewalKey=KEY_PREFIX + name;
         this.stringRedisTemplate=stringRedisTemplate;
     }
 
+    /**
+     * 需要调用lock等待的，传入监听容器订阅解锁通知；不传时lock只能按剩余有效期分段休眠重试
+     */
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer) {
+        this(name, stringRedisTemplate);
+        this.listenerContainer = listenerContainer;
+    }
+
+    /**
+     * 多把锁当成一把：全部获取成功才算成功，一起续期、一起释放，重入次数分别记录
+     * 集群模式下names要带相同的hash tag，否则不能在一个脚本中执行
+     * @param channel 这些锁共用的解锁通知频道
+     */
+    public SimpleRedisLock(List<String> names, String channel, StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer) {
+        this.keys = new ArrayList<>(names.size());
+        for (String name : names) {
+            this.keys.add(KEY_PREFIX + name);
+        }
+        this.channel = channel;
+        this.renewalKey = String.join(",", this.keys);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    /**
+     * 获取锁，不属于任何线程：每次用一个新的持有者标示，所以不可重入，可以在其他线程中用unlockOnce释放
+     * 和同名的SimpleRedisLock互斥，缓存重建时在请求线程加锁、在重建线程解锁用这个
+     * @return 持有者标示，解锁时要用；没拿到锁返回null
+     */
+    public static String tryLockOnce(String name, long leaseMillis, StringRedisTemplate stringRedisTemplate) {
+        String token = UUID.randomUUID().toString(true);
+        Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(KEY_PREFIX + name),
+                token, String.valueOf(leaseMillis));
+        return ttl == null ? token : null;
+    }
+
+    /**
+     * 释放tryLockOnce获取的锁，只有持有者标示一致才删除（锁过期后被别人拿到了就不删），并通知等待的线程
+     */
+    public static void unlockOnce(String name, String token, StringRedisTemplate stringRedisTemplate) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(KEY_PREFIX + name),
+                token, LOCK_CHANNEL_PREFIX + name);
+    }
+
     @Override
     public boolean tryLock(Long timeoutSec) {
-        //获取线程标示
-        String threadId = ID_PREFIX+Thread.currentThread().getId();
-        //获取锁
-        Boolean success = stringRedisTemplate.opsForValue()
-                .setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
-
-        return success;
+        //获取锁，返回null表示成功，不会拆箱空指针
+        return tryAcquire(TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
     }
 
+    @Override
+    public boolean lock(long waitTime, TimeUnit unit) throws InterruptedException {
+        long leaseMillis = TimeUnit.SECONDS.toMillis(LOCK_WATCHDOG_TTL);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        //1.先尝试一次，没有竞争时不用订阅
+        Long ttl = tryAcquire(leaseMillis);
+        if (ttl == null) {
+            startWatchdog(leaseMillis);
+            return true;
+        }
+        //2.订阅解锁频道，收到通知或者等到锁过期再重试
+        Waiters waiters = subscribe();
+        try {
+            while (true) {
+                ttl = tryAcquire(leaseMillis);
+                if (ttl == null) {
+                    startWatchdog(leaseMillis);
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                long wait = Math.min(Math.min(ttl < 0 ? MAX_WAIT_SLICE_MILLIS : ttl, remaining), MAX_WAIT_SLICE_MILLIS);
+                if (waiters == null) {
+                    Thread.sleep(wait);
+                } else {
+                    waiters.semaphore.tryAcquire(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            unsubscribe(waiters);
+        }
+    }
 
     @Override
     public void unlock() {
-        // 调用lua脚本
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),
-                ID_PREFIX + Thread.currentThread().getId());
+        // 调用lua脚本，返回还持有的锁的数量（有重入时大于0），null表示不是自己的锁
+        Long held = stringRedisTemplate.execute(UNLOCK_SCRIPT, keys, threadId(), channel);
+        if (held == null || held == 0) {
+            //停止续期
+            ScheduledFuture<?> renewal = RENEWALS.remove(renewalKey + threadId());
+            if (renewal != null) {
+                renewal.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 执行lock.lua
+     * @return null表示获取成功，否则是锁的剩余有效期（毫秒）
+     */
+    private Long tryAcquire(long leaseMillis) {
+        return stringRedisTemplate.execute(LOCK_SCRIPT, keys, threadId(), String.valueOf(leaseMillis));
+    }
+
+    /**
+     * 第一次获取到锁时开始续期，重入时已经在续期了
+     * 续期失败（锁已经被释放或者过期了）时停止
+     */
+    private void startWatchdog(long lease) {
+        List<String> keys = this.keys;
+        String threadId = threadId();
+        RENEWALS.computeIfAbsent(renewalKey + threadId, k -> WATCHDOG.scheduleAtFixedRate(() -> {
+            try {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, keys, threadId, String.valueOf(lease));
+                if (renewed == null || renewed == 0) {
+                    ScheduledFuture<?> renewal = RENEWALS.remove(k);
+                    if (renewal != null) {
+                        renewal.cancel(false);
+                    }
+                }
+            } catch (Exception e) {
+                //Redis暂时不可用，下次再续
+                log.error("锁续期失败, key={}", renewalKey, e);
+            }
+        }, lease / 3, lease / 3, TimeUnit.MILLISECONDS));
+    }
+
+    private Waiters subscribe() {
+        if (listenerContainer == null) {
+            return null;
+        }
+        return WAITERS.compute(channel, (topic, waiters) -> {
+            if (waiters == null) {
+                waiters = new Waiters(keys.size() > 1);
+                listenerContainer.addMessageListener(waiters.listener, new ChannelTopic(topic));
+            }
+            waiters.count++;
+            return waiters;
+        });
     }
 
-/*    @Override
-    public void unLock() {
-        //获取线程标示
-        String threadId = ID_PREFIX+Thread.currentThread().getId();
-        //获取锁中标示
-        String id = stringRedisTemplate.opsForValue().get(KEY_PREFIX + name);
-        //判断标示是否一致
-        if(threadId.equals(id)){
-            //释放锁
-            stringRedisTemplate.delete(KEY_PREFIX + name);
+    private void unsubscribe(Waiters waiters) {
+        if (waiters == null) {
+            return;
         }
-    }*/
+        WAITERS.computeIfPresent(channel, (topic, current) -> {
+            if (current != waiters || --current.count > 0) {
+                return current;
+            }
+            listenerContainer.removeMessageListener(current.listener, new ChannelTopic(topic));
+            return null;
+        });
+    }
+
+    private static String threadId() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    /**
+     * 等待同一把锁的线程：每收到一次解锁通知唤醒一个，按等待的先后顺序
+     * 多把锁共用一个频道时，释放的不一定是谁在等的那把，全部唤醒重试
+     */
+    private static class Waiters {
+        private final Semaphore semaphore = new Semaphore(0, true);
+        private final MessageListener listener;
+        //在WAITERS.compute中修改，不需要再加锁
+        private int count;
+
+        private Waiters(boolean wakeAll) {
+            this.listener = (message, pattern) ->
+                    semaphore.release(wakeAll ? Math.max(1, semaphore.getQueueLength()) : 1);
+        }
+    }
 }
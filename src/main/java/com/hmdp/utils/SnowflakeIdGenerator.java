@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+import static com.hmdp.utils.SystemConstants.ID_WORKER_HEARTBEAT;
+
+/**
+ * 雪花id：1位标记 + 40位毫秒时间戳 + 10位机器号 + 12位毫秒内序列号，生成时不访问Redis
+ * 标记位是第62位：RedisIdWorker的id是秒数左移32位，同一时刻比毫秒数左移22位大，
+ * 置上这一位后雪花id总是比RedisIdWorker已经生成的id大，订单表的主键和对账的游标不会倒退
+ * 机器号在启动时从Redis租用，定时续期；毫秒时间戳和序列号放在一个AtomicLong中，CAS更新，不加锁
+ * 一毫秒内的序列号用完了，借用下一毫秒，最多领先时钟MAX_BORROW_MILLIS；
+ * 时钟回拨时继续用上次的时间戳，回拨超过MAX_BACKWARD_MILLIS直接报错
+ */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator implements IdGenerator {
+    /**
+     * 开始时间戳，和RedisIdWorker相同，单位毫秒
+     */
+    private static final long BEGIN_MILLIS = 1640995200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    //第62位，RedisIdWorker的秒数到2^30（2056年）之前不会用到这一位
+    private static final long FLAG = 1L << 62;
+    //时间戳只剩40位，超过时会和标记位重叠
+    private static final long MAX_MILLIS = (1L << 40) - 1;
+    //最多借用多少毫秒之后的序列号，超过时等时钟追上来
+    private static final long MAX_BORROW_MILLIS = 5L;
+    //时钟回拨超过这个值不再等待，直接报错
+    private static final long MAX_BACKWARD_MILLIS = 1000L;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //本进程的标示，写在机器号的key中
+    private final String instanceId = UUID.randomUUID().toString(true);
+    private volatile long workerId = -1;
+    //高位是上次的毫秒时间戳，低SEQUENCE_BITS位是序列号
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        workerId = leaseWorkerId();
+        log.info("雪花id机器号: {}", workerId);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), instanceId);
+    }
+
+    /**
+     * 从随机位置开始依次尝试，SET NX EX 租用第一个空闲的机器号
+     */
+    private long leaseWorkerId() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, instanceId, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有空闲的雪花id机器号");
+    }
+
+    /**
+     * 续期机器号；续期失败说明已经过期，可能被其他节点租走了，换一个新的机器号
+     */
+    @Scheduled(fixedDelay = ID_WORKER_HEARTBEAT)
+    public void heartbeat() {
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    instanceId, String.valueOf(ID_WORKER_TTL));
+            if (renewed == null || renewed == 0) {
+                long old = workerId;
+                workerId = leaseWorkerId();
+                log.warn("雪花id机器号已过期, 重新租用: {} -> {}", old, workerId);
+            }
+        } catch (Exception e) {
+            //Redis暂时不可用，有效期内继续用当前的机器号
+            log.error("雪花id机器号续期失败, workerId={}", workerId, e);
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        while (true) {
+            long now = System.currentTimeMillis() - BEGIN_MILLIS;
+            if (now > MAX_MILLIS) {
+                throw new IllegalStateException("雪花id的时间戳超过40位，拒绝生成id");
+            }
+            long prev = state.get();
+            long lastMillis = prev >>> SEQUENCE_BITS;
+            long next;
+            if (now > lastMillis) {
+                //1.新的一毫秒，序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                //2.同一毫秒、借用的毫秒或者时钟回拨，继续用上次的时间戳
+                if (lastMillis - now > MAX_BACKWARD_MILLIS) {
+                    throw new IllegalStateException("时钟回拨" + (lastMillis - now) + "毫秒，拒绝生成id");
+                }
+                if ((prev & MAX_SEQUENCE) < MAX_SEQUENCE) {
+                    next = prev + 1;
+                } else if (lastMillis + 1 - now <= MAX_BORROW_MILLIS) {
+                    //2.1.序列号用完了，借用下一毫秒
+                    next = (lastMillis + 1) << SEQUENCE_BITS;
+                } else {
+                    //2.2.已经领先太多，等时钟追上来
+                    Thread.yield();
+                    continue;
+                }
+            }
+            if (state.compareAndSet(prev, next)) {
+                //3.拼接：标记位 | 时间戳 | 机器号 | 序列号
+                return FLAG
+                        | (next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS)
+                        | workerId << SEQUENCE_BITS
+                        | (next & MAX_SEQUENCE);
+            }
+        }
+    }
+}
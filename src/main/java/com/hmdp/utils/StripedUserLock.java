@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.hmdp.utils.RedisConstants.LOCK_ORDER_STRIPE;
+import static com.hmdp.utils.RedisConstants.LOCK_ORDER_STRIPE_CHANNEL;
+import static com.hmdp.utils.SystemConstants.ORDER_LOCK_STRIPES;
+
+/**
+ * 创建订单时按用户加的两级分段锁：用户id按哈希分到ORDER_LOCK_STRIPES段，每段一把本地锁和一把Redis锁
+ * 1.本节点内同一段的线程在本地锁上排队，不访问Redis；只有拿到本地锁的线程去获取这一段的Redis锁
+ * 2.一批用户一次获取涉及的所有段：本地锁按段号从小到大获取，Redis锁在一个脚本中全部获取，不会死锁
+ * 指标 lock.striped.acquisitions{tier=local|redis} 和 lock.striped.users，两者相除就是每个订单获取锁的次数
+ */
+@Component
+public class StripedUserLock {
+
+    private final ReentrantLock[] localLocks = new ReentrantLock[ORDER_LOCK_STRIPES];
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final Counter localAcquisitions;
+    private final Counter redisAcquisitions;
+    private final Counter users;
+
+    public StripedUserLock(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                           MeterRegistry registry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        for (int i = 0; i < localLocks.length; i++) {
+            localLocks[i] = new ReentrantLock();
+        }
+        this.localAcquisitions = registry.counter("lock.striped.acquisitions", "tier", "local");
+        this.redisAcquisitions = registry.counter("lock.striped.acquisitions", "tier", "redis");
+        this.users = registry.counter("lock.striped.users");
+    }
+
+    /**
+     * 一个用户的锁
+     */
+    public ILock get(Long userId) {
+        return get(Collections.singleton(userId));
+    }
+
+    /**
+     * 一批用户共用一把锁，覆盖这些用户所在的所有段
+     */
+    public ILock get(Collection<Long> userIds) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Long userId : userIds) {
+            stripes.add(stripe(userId));
+        }
+        return new GroupLock(stripes, userIds.size());
+    }
+
+    /**
+     * 用户所在的段，高位和低位混合之后取模
+     */
+    public static int stripe(Long userId) {
+        int h = userId.hashCode();
+        return (h ^ (h >>> 16)) & (ORDER_LOCK_STRIPES - 1);
+    }
+
+    /**
+     * 一组段的锁：先按顺序获取本地锁，再获取Redis锁，释放时相反
+     * 本地锁属于线程，获取和释放要在同一个线程中
+     */
+    private class GroupLock implements ILock {
+        private final int[] stripes;
+        private final int userCount;
+        private final ILock redisLock;
+
+        private GroupLock(TreeSet<Integer> stripes, int userCount) {
+            this.stripes = new int[stripes.size()];
+            List<String> names = new ArrayList<>(stripes.size());
+            int i = 0;
+            for (Integer stripe : stripes) {
+                this.stripes[i++] = stripe;
+                names.add(LOCK_ORDER_STRIPE + stripe);
+            }
+            this.userCount = userCount;
+            this.redisLock = new SimpleRedisLock(names, LOCK_ORDER_STRIPE_CHANNEL, stringRedisTemplate,
+                    listenerContainer);
+        }
+
+        @Override
+        public boolean tryLock(Long timeoutSec) {
+            int locked = 0;
+            boolean ok = false;
+            try {
+                while (locked < stripes.length && localLocks[stripes[locked]].tryLock()) {
+                    locked++;
+                }
+                ok = locked == stripes.length && redisLock.tryLock(timeoutSec);
+            } finally {
+                //没拿到或者访问Redis出错，释放已经拿到的本地锁
+                if (!ok) {
+                    unlockLocal(locked);
+                }
+            }
+            if (ok) {
+                recordAcquired();
+            }
+            return ok;
+        }
+
+        @Override
+        public boolean lock(long waitTime, TimeUnit unit) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+            int locked = 0;
+            boolean ok = false;
+            try {
+                //1.本地锁，同一段的其他线程释放时直接唤醒
+                while (locked < stripes.length) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (!localLocks[stripes[locked]].tryLock(remaining, TimeUnit.MILLISECONDS)) {
+                        return false;
+                    }
+                    locked++;
+                }
+                //2.Redis锁，只和其他节点竞争
+                ok = redisLock.lock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } finally {
+                //超时、被中断或者访问Redis出错，释放已经拿到的本地锁
+                if (!ok) {
+                    unlockLocal(locked);
+                }
+            }
+            if (ok) {
+                recordAcquired();
+            }
+            return ok;
+        }
+
+        @Override
+        public void unlock() {
+            try {
+                redisLock.unlock();
+            } finally {
+                unlockLocal(stripes.length);
+            }
+        }
+
+        private void unlockLocal(int locked) {
+            for (int i = locked - 1; i >= 0; i--) {
+                localLocks[stripes[i]].unlock();
+            }
+        }
+
+        private void recordAcquired() {
+            localAcquisitions.increment(stripes.length);
+            redisAcquisitions.increment();
+            users.increment(userCount);
+        }
+    }
+}
@@ -1,8 +1,38 @@
 package com.hmdp.utils;
 
+import java.util.Collections;
+import java.util.Set;
+
 public class SystemConstants {
     public static final String IMAGE_UPLOAD_DIR = "D:\\development\\nginx-1.18.0\\html\\hmdp\\imgs";
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    //HTTP缓存的时间（秒）：max-age内客户端直接用，stale-while-revalidate内先用旧数据再后台验证
+    public static final long SHOP_MAX_AGE = 30;
+    public static final long SHOP_STALE_WHILE_REVALIDATE = 300;
+    public static final long SHOP_TYPE_MAX_AGE = 600;
+    public static final long SHOP_TYPE_STALE_WHILE_REVALIDATE = 86400;
+    //秒杀订单入库：每个节点的消费者线程数，每批最多多少个订单
+    public static final int SECKILL_ORDER_WORKERS = 4;
+    public static final int SECKILL_ORDER_BATCH_SIZE = 500;
+    //创建订单时按用户加的分段锁：段数（2的幂），最多等待多久（秒）
+    public static final int ORDER_LOCK_STRIPES = 1024;
+    public static final long ORDER_LOCK_WAIT = 10L;
+    //id号段模式：每次申请多少个序列号，剩余百分之多少时预取下一段
+    public static final long ID_SEGMENT_STEP = 1000L;
+    public static final long ID_SEGMENT_LOW_WATER = 20L;
+    //雪花id：机器号续期的间隔（毫秒）；这些业务前缀用雪花id，不访问Redis，其他的用Redis号段
+    public static final long ID_WORKER_HEARTBEAT = 10000L;
+    public static final Set<String> SNOWFLAKE_ID_PREFIXES = Collections.singleton("order");
+    //秒杀准入：节点心跳的间隔（毫秒），超过多久（毫秒）没有心跳的节点不再计入节点数
+    public static final long SECKILL_NODE_HEARTBEAT = 5000L;
+    public static final long SECKILL_NODE_TTL = 15000L;
+    //秒杀对账：每次间隔（毫秒），每批多少个用户/订单，每张券每次最多几批，结束多久（小时）之后不再对账
+    public static final long SECKILL_RECONCILE_INTERVAL = 60000L;
+    public static final int SECKILL_RECONCILE_BATCH_SIZE = 500;
+    public static final int SECKILL_RECONCILE_MAX_BATCHES = 20;
+    public static final long SECKILL_RECONCILE_GRACE_HOURS = 24;
+    //同一个用户最多重放几次，数据库一直拒绝（比如库存不足）的订单不再无限重放
+    public static final int SECKILL_RECONCILE_MAX_REPLAYS = 3;
 }
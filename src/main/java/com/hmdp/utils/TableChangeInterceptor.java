@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Signature;
+
+import java.util.Map;
+
+/**
+ * MyBatis插件：指定的Mapper执行了增删改之后发布表级的变更，不管是通过Service的哪个方法、还是直接调用Mapper
+ * 只知道表变了，不知道是哪一行（id为null），用于整表缓存的数据，比如店铺类型
+ */
+@Intercepts(@Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class}))
+public class TableChangeInterceptor implements Interceptor {
+
+    //Mapper的全限定名 -> 表名
+    private final Map<String, String> tables;
+    private final InMemoryChangeEventSource changeEventSource;
+
+    public TableChangeInterceptor(Map<String, String> tables, InMemoryChangeEventSource changeEventSource) {
+        this.tables = tables;
+        this.changeEventSource = changeEventSource;
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Object result = invocation.proceed();
+        MappedStatement ms = (MappedStatement) invocation.getArgs()[0];
+        String id = ms.getId();
+        String table = tables.get(id.substring(0, id.lastIndexOf('.')));
+        //批量执行器返回的是一个固定的负数，不是影响的行数，也当作有变更
+        if (table != null && !Integer.valueOf(0).equals(result)) {
+            RowChange change = new RowChange();
+            change.setTable(table);
+            change.setType(typeOf(ms.getSqlCommandType()));
+            //在事务中时，提交之后才发布
+            changeEventSource.publish(change);
+        }
+        return result;
+    }
+
+    private static RowChange.Type typeOf(SqlCommandType commandType) {
+        switch (commandType) {
+            case INSERT:
+                return RowChange.Type.INSERT;
+            case DELETE:
+                return RowChange.Type.DELETE;
+            default:
+                return RowChange.Type.UPDATE;
+        }
+    }
+}
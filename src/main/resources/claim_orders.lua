@@ -0,0 +1,17 @@
+-- 认领消费者组中超过一段时间没有确认的订单消息（所属消费者挂了，或者处理失败了）
+-- 1.参数列表
+-- 1.1.stream的key
+local streamKey = KEYS[1]
+-- 1.2.消费者组
+local group = ARGV[1]
+-- 1.3.认领后的消费者
+local consumer = ARGV[2]
+-- 1.4.最少空闲多少毫秒
+local minIdle = ARGV[3]
+-- 1.5.从哪个id开始扫描
+local start = ARGV[4]
+-- 1.6.最多认领多少条
+local count = ARGV[5]
+
+-- 2.XAUTOCLAIM会增加消息的投递次数，返回 {下次扫描的id, {{id, {k1, v1, ...}}, ...}}
+return redis.call('xautoclaim', streamKey, group, consumer, minIdle, start, 'COUNT', count)
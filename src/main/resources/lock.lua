@@ -0,0 +1,14 @@
+-- 可重入锁：锁是一个hash，field是持有者标示（线程标示），value是重入次数
+-- KEYS是锁的key，可以有多个，全部获取成功才算成功；ARGV[1]是线程标示，ARGV[2]是有效期（毫秒）
+-- 1.有被别人持有的，返回它的剩余有效期（毫秒），调用方最多等这么久
+for i, key in ipairs(KEYS) do
+  if (redis.call('EXISTS', key) == 1 and redis.call('HEXISTS', key, ARGV[1]) == 0) then
+    return redis.call('PTTL', key)
+  end
+end
+-- 2.都不存在或者是自己持有的，重入次数加一并重置有效期，返回nil表示获取成功
+for i, key in ipairs(KEYS) do
+  redis.call('HINCRBY', key, ARGV[1], 1)
+  redis.call('PEXPIRE', key, ARGV[2])
+end
+return nil
@@ -0,0 +1,10 @@
+-- 看门狗续期：KEYS是锁的key，可以有多个；ARGV[1]是线程标示，ARGV[2]是有效期（毫秒）
+-- 只给还是自己持有的续期，返回续期的数量；都已经释放或者过期了返回0
+local renewed = 0
+for i, key in ipairs(KEYS) do
+  if (redis.call('HEXISTS', key, ARGV[1]) == 1) then
+    redis.call('PEXPIRE', key, ARGV[2])
+    renewed = renewed + 1
+  end
+end
+return renewed
@@ -0,0 +1,8 @@
+-- 释放：KEYS[1]是key，ARGV[1]是持有者标示
+-- 获取key中的标示，判断是否与自己的标示一致
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+  -- 一致，则删除
+  return redis.call('DEL', KEYS[1])
+end
+-- 不一致，则直接返回
+return 0
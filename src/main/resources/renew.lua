@@ -0,0 +1,7 @@
+-- 续期：KEYS[1]是key，ARGV[1]是持有者标示，ARGV[2]是新的有效期（秒）
+-- 判断是否还是自己持有，是则续期
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+  return redis.call('EXPIRE', KEYS[1], ARGV[2])
+end
+-- 已经不是自己的了，返回0
+return 0
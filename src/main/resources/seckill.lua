@@ -3,30 +3,45 @@
 local voucherId = ARGV[1]
 -- 1.2.用户id
 local userId = ARGV[2]
--- 1.3.订单id
-local orderId = ARGV[3]
+-- 1.3.当前时间（毫秒），由调用方传入，脚本中不读时钟
+local now = tonumber(ARGV[3])
+-- 1.4.订单id，由调用方生成（雪花id，不访问Redis）
+local orderId = ARGV[4]
 
 -- 2.数据key
 -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.秒杀信息key，hash：begin开始时间 end结束时间
+local infoKey = 'seckill:info:' .. voucherId
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
+-- 3.1.判断秒杀时间 hmget infoKey begin end，没有秒杀信息的不限制时间
+local info = redis.call('hmget', infoKey, 'begin', 'end')
+if(info[1] and now < tonumber(info[1])) then
+    -- 尚未开始，返回3
+    return 3
+end
+if(info[2] and now > tonumber(info[2])) then
+    -- 已经结束，返回4
+    return 4
+end
+-- 3.2.判断库存是否充足 get stockKey
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 库存不足，返回1
     return 1
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
+-- 3.3.判断用户是否下单 SISMEMBER orderKey userId
 if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+    -- 存在，说明是重复下单，返回2
     return 2
 end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 -- 3.5.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
+-- 3.6.发送消息到队列中，和扣库存、保存用户在同一个脚本中，不会出现有资格但没有订单的情况
+-- XADD stream.orders * userId .. voucherId .. id ..
 redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,25 @@
+-- 分段库存：在用户所属的段中判断一人一单并扣减库存
+-- 1.数据key，两个key的hash tag相同，集群模式下在同一个槽
+-- 1.1.本段的库存key
+local stockKey = KEYS[1]
+-- 1.2.本段的已下单用户key
+local orderKey = KEYS[2]
+-- 2.参数列表
+-- 2.1.用户id
+local userId = ARGV[1]
+
+-- 3.脚本业务
+-- 3.1.判断用户是否下单 SISMEMBER orderKey userId
+if(redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.2.判断本段库存是否充足，不足时不记下用户
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 本段库存不足，返回1，调用方去其他段扣减，扣减成功后再记下用户
+    return 1
+end
+-- 3.3.扣库存，记下用户
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+return 0
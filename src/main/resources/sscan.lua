@@ -0,0 +1,3 @@
+-- 从指定的游标开始扫描set中的一批成员，返回 {下次的游标, {member1, member2, ...}}，游标为0表示扫描完一轮
+-- spring-data-redis的scan不能从指定的游标继续，对账每次只扫描一部分，下次接着扫
+return redis.call('sscan', KEYS[1], ARGV[1], 'COUNT', ARGV[2])
@@ -0,0 +1,7 @@
+-- 库存充足时扣减一个，返回0；库存不足返回1
+local stockKey = KEYS[1]
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+return 0
@@ -0,0 +1,22 @@
+-- 按数据库校正Redis中的库存：Redis库存 + 已下单用户数 应该等于 数据库库存 + 订单数（都是初始库存）
+-- 1.数据key
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.已下单用户key
+local orderKey = KEYS[2]
+-- 2.参数列表
+-- 2.1.数据库库存 + 订单数
+local total = tonumber(ARGV[1])
+
+-- 3.在一次执行中读取库存和用户数，秒杀脚本不会穿插进来
+local expected = total - redis.call('scard', orderKey)
+if(expected < 0) then
+    expected = 0
+end
+local current = tonumber(redis.call('get', stockKey) or '0')
+if(current == expected) then
+    return 0
+end
+redis.call('set', stockKey, expected)
+-- 4.返回校正的数量
+return expected - current
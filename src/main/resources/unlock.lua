@@ -1,8 +1,24 @@
--- 这里的 KEYS[1] 就是锁的key，这里的ARGV[1] 就是当前线程标示
--- 获取锁中的标示，判断是否与当前线程标示一致
-if (redis.call('GET', KEYS[1]) == ARGV[1]) then
-  -- 一致，则删除锁
-  return redis.call('DEL', KEYS[1])
+-- 这里的 KEYS 就是锁的key，可以有多个；ARGV[1] 就是当前线程标示，ARGV[2]是解锁的通知频道
+local owned = 0
+local released = 0
+for i, key in ipairs(KEYS) do
+  -- 判断锁中是否有当前线程标示，不是自己的锁不能释放
+  if (redis.call('HEXISTS', key, ARGV[1]) == 1) then
+    owned = owned + 1
+    -- 重入次数减一，还没减到0说明外层还持有，有效期保持最后一次获取时设置的；减到0删除锁
+    if (redis.call('HINCRBY', key, ARGV[1], -1) <= 0) then
+      redis.call('DEL', key)
+      released = released + 1
+    end
+  end
 end
--- 不一致，则直接返回
-return 0
\ No newline at end of file
+-- 一个都不是自己的，直接返回
+if (owned == 0) then
+  return nil
+end
+-- 有删除的锁，通知等待的线程
+if (released > 0) then
+  redis.call('PUBLISH', ARGV[2], 'unlocked')
+end
+-- 返回还持有的锁的数量
+return owned - released
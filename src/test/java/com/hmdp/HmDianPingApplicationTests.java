@@ -7,8 +7,14 @@ import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
 import com.hmdp.service.impl.BlogServiceImpl;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidationConsumer;
+import com.hmdp.utils.InMemoryChangeEventSource;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RowChange;
+import com.hmdp.utils.SnowflakeIdGenerator;
 import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
@@ -18,12 +24,20 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CHANGE_FLUSH_MILLIS;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
 
 @SpringBootTest
@@ -35,12 +49,21 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
     @Resource
     private BlogServiceImpl blogService;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private InMemoryChangeEventSource changeEventSource;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
     @Test
     void testSaveShop(){
@@ -67,6 +90,123 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    /**
+     * id生成的吞吐量：每次INCR和号段模式，100个线程各生成1000个id，先预热一轮
+     * 同时检查号段模式的id不重复、每个线程内单调递增
+     */
+    @Test
+    void testIdWorkerSegmentThroughput() throws InterruptedException {
+        int threads = 100;
+        int perThread = 1000;
+        for (boolean segment : new boolean[]{false, true}) {
+            for (int round = 0; round < 2; round++) {
+                Set<Long> ids = ConcurrentHashMap.newKeySet();
+                AtomicInteger disorder = new AtomicInteger();
+                CountDownLatch latch = new CountDownLatch(threads);
+                long begin = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    es.submit(() -> {
+                        long last = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            long id = segment ? redisIdWorker.nextSegmentId("order") : redisIdWorker.nextId("order");
+                            if (id <= last) {
+                                disorder.incrementAndGet();
+                            }
+                            last = id;
+                            ids.add(id);
+                        }
+                        latch.countDown();
+                    });
+                }
+                latch.await();
+                long cost = System.nanoTime() - begin;
+                //第一轮是预热
+                if (round == 1) {
+                    System.out.println((segment ? "segment" : "incr") + ": "
+                            + threads * perThread * 1_000_000_000L / cost + " ids/sec");
+                }
+                Assertions.assertEquals(threads * perThread, ids.size());
+                Assertions.assertEquals(0, disorder.get());
+            }
+        }
+    }
+
+    /**
+     * 订单id从RedisIdWorker换成雪花id之后不能倒退：雪花id要比同一时刻和之前的RedisIdWorker的id都大
+     */
+    @Test
+    void testSnowflakeIdAboveRedisIdWorker() {
+        long redisId = Math.max(redisIdWorker.nextId("order"), redisIdWorker.nextSegmentId("order"));
+        long snowflakeId = snowflakeIdGenerator.nextId("order");
+        Assertions.assertTrue(snowflakeId > redisId, snowflakeId + " <= " + redisId);
+        //RedisIdWorker这一秒可能的最大id
+        long maxRedisId = ((redisId >>> 32) + 1 << 32) - 1;
+        Assertions.assertTrue(snowflakeId > maxRedisId, snowflakeId + " <= " + maxRedisId);
+        Assertions.assertTrue(snowflakeIdGenerator.nextId("order") > snowflakeId);
+    }
+
+    /**
+     * 1000个线程同时查询同一个冷key：只查询一次数据库，所有线程拿到同一个结果，统计p99耗时
+     */
+    @Test
+    void testMutexStampede() throws InterruptedException {
+        int threads = 1000;
+        Long id = 1L;
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+
+        AtomicInteger dbCalls = new AtomicInteger();
+        List<Long> costs = Collections.synchronizedList(new ArrayList<>(threads));
+        List<Shop> results = Collections.synchronizedList(new ArrayList<>(threads));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.submit(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    results.add(cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, shopId -> {
+                        dbCalls.incrementAndGet();
+                        return shopService.getById(shopId);
+                    }, CACHE_SHOP_TTL, TimeUnit.MINUTES));
+                    costs.add(System.nanoTime() - begin);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        done.await();
+        pool.shutdown();
+
+        Collections.sort(costs);
+        long p99 = costs.get((int) Math.ceil(costs.size() * 0.99) - 1);
+        System.out.println("db calls = " + dbCalls.get());
+        System.out.println("p99 = " + TimeUnit.NANOSECONDS.toMillis(p99) + " ms");
+        Assertions.assertEquals(1, dbCalls.get());
+        Assertions.assertEquals(threads, results.size());
+        Assertions.assertNotNull(results.get(0));
+        for (Shop shop : results) {
+            Assertions.assertEquals(results.get(0), shop);
+        }
+    }
+
+    /**
+     * 用进程内的变更来源代替binlog，发布一条店铺修改，检查缓存被删除
+     */
+    @Test
+    void testChangeEventInvalidation() throws InterruptedException {
+        Long id = 1L;
+        Shop shop = shopService.getById(id);
+        cacheClient.set(CACHE_SHOP_KEY + id, shop, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        changeEventSource.publish(RowChange.of(CacheInvalidationConsumer.TABLE_SHOP, RowChange.Type.UPDATE, id, shop, shop));
+        Thread.sleep(CHANGE_FLUSH_MILLIS * 5);
+
+        Assertions.assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(CACHE_SHOP_KEY + id)));
+    }
 
     @Test
     void loadShopData(){
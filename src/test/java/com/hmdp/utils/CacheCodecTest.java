@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * JSON和二进制编码：编码再解码要得到相同的对象，二进制编码要比JSON小，不认识或不完整的数据不能当成有效数据
+ */
+class CacheCodecTest {
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec();
+
+    @Test
+    void roundTrip() {
+        Shop shop = shop();
+        Assertions.assertEquals(shop, json.decode(json.encode(shop), Shop.class));
+        Assertions.assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+    }
+
+    @Test
+    void binaryRoundTripNullFields() {
+        Shop shop = new Shop().setId(1L).setName("");
+        Assertions.assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+    }
+
+    @Test
+    void binaryRoundTripLogical() {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2024, 1, 2, 3, 4, 5, 6));
+        redisData.setDelta(120L);
+        redisData.setData(shop());
+
+        RedisData decoded = binary.decodeLogical(binary.encodeLogical(redisData), Shop.class);
+
+        Assertions.assertEquals(redisData, decoded);
+    }
+
+    @Test
+    void binarySmallerThanJson() {
+        Shop shop = shop();
+        int jsonSize = json.encode(shop).length;
+        int binarySize = binary.encode(shop).length;
+        Assertions.assertTrue(binarySize < jsonSize, "binary " + binarySize + " bytes, json " + jsonSize + " bytes");
+    }
+
+    @Test
+    void binaryRejectsOtherFormats() {
+        //旧的JSON数据第一个字节是'{'，不是版本号
+        Assertions.assertNull(binary.decode(json.encode(shop()), Shop.class));
+        //版本号对，但类型不对
+        Assertions.assertNull(binary.decode(binary.encode(shop()), Blog.class));
+        Assertions.assertNull(binary.decodeLogical(binary.encode(shop()), Shop.class));
+    }
+
+    @Test
+    void binaryRejectsTruncatedData() {
+        byte[] bytes = binary.encode(shop());
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> binary.decode(truncated, Shop.class));
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(10L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}
@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存重建线程池：同一个key去重、队列满时的拒绝策略、按热度排序、任务异常不影响后续提交
+ * 都用一个线程，先提交一个阻塞的任务占住线程，后面的任务都在排队，放开之后按队列顺序一个一个执行
+ */
+class CacheRebuildExecutorTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private CacheRebuildExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    void deduplicatesPendingKey() throws InterruptedException {
+        executor = new CacheRebuildExecutor(registry, 1, 10, CacheRebuildExecutor.RejectPolicy.DISCARD);
+        CountDownLatch done = new CountDownLatch(1);
+        Assertions.assertTrue(executor.submit("cache:shop:1", 0, () -> {
+            await(release);
+            done.countDown();
+        }));
+
+        //正在重建，再提交同一个key被忽略，其他key正常进入队列
+        Assertions.assertFalse(executor.submit("cache:shop:1", 0, () -> { }));
+        Assertions.assertTrue(executor.submit("cache:shop:2", 0, () -> { }));
+        Assertions.assertEquals(1.0, registry.counter("cache.rebuild.duplicate").count());
+
+        release.countDown();
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        //重建完成之后可以再次提交
+        CountDownLatch again = new CountDownLatch(1);
+        Assertions.assertTrue(submitEventually("cache:shop:1", again::countDown));
+        Assertions.assertTrue(again.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void discardsWhenQueueFull() throws InterruptedException {
+        executor = new CacheRebuildExecutor(registry, 1, 2, CacheRebuildExecutor.RejectPolicy.DISCARD);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        occupyWorker();
+        for (int i = 1; i <= 2; i++) {
+            String key = "cache:shop:" + i;
+            Assertions.assertTrue(executor.submit(key, 0, () -> {
+                executed.add(key);
+                done.countDown();
+            }));
+        }
+
+        Assertions.assertFalse(executor.submit("cache:shop:3", 0, () -> executed.add("cache:shop:3")));
+        Assertions.assertEquals(1.0, registry.counter("cache.rebuild.rejected").count());
+
+        release.countDown();
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(executed.contains("cache:shop:3"));
+        //被丢弃的key没有留在去重表中，可以再提交
+        Assertions.assertTrue(executor.submit("cache:shop:3", 0, () -> { }));
+    }
+
+    @Test
+    void callerRunsWhenQueueFull() throws InterruptedException {
+        executor = new CacheRebuildExecutor(registry, 1, 1, CacheRebuildExecutor.RejectPolicy.CALLER_RUNS);
+        occupyWorker();
+        executor.submit("cache:shop:1", 0, () -> { });
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+
+        Assertions.assertTrue(executor.submit("cache:shop:2", 0, () -> threads.add(Thread.currentThread())));
+
+        Assertions.assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+        Assertions.assertEquals(1.0, registry.counter("cache.rebuild.rejected").count());
+    }
+
+    @Test
+    void hotterKeysRunFirst() throws InterruptedException {
+        executor = new CacheRebuildExecutor(registry, 1, 10, CacheRebuildExecutor.RejectPolicy.DISCARD);
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        occupyWorker();
+        submit("low", 1, executed, done);
+        submit("high", 10, executed, done);
+        submit("mid", 5, executed, done);
+        submit("high2", 10, executed, done);
+
+        release.countDown();
+
+        Assertions.assertTrue(done.await(5, TimeUnit.SECONDS));
+        //热度高的先执行，热度相同的按提交顺序
+        Assertions.assertEquals(Arrays.asList("high", "high2", "mid", "low"), executed);
+    }
+
+    @Test
+    void failedTaskReleasesKey() throws InterruptedException {
+        executor = new CacheRebuildExecutor(registry, 1, 10, CacheRebuildExecutor.RejectPolicy.DISCARD);
+        executor.submit("cache:shop:1", 0, () -> {
+            throw new IllegalStateException("数据库不可用");
+        });
+
+        CountDownLatch again = new CountDownLatch(1);
+        Assertions.assertTrue(submitEventually("cache:shop:1", again::countDown));
+        Assertions.assertTrue(again.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1.0, registry.counter("cache.rebuild.failed").count());
+    }
+
+    /**
+     * 提交一个阻塞的任务占住唯一的线程，等它开始执行、离开队列
+     */
+    private void occupyWorker() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        executor.submit("cache:shop:0", 0, () -> {
+            started.countDown();
+            await(release);
+        });
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private void submit(String key, long priority, List<String> executed, CountDownLatch done) {
+        executor.submit(key, priority, () -> {
+            executed.add(key);
+            done.countDown();
+        });
+    }
+
+    /**
+     * 上一个任务结束时才从去重表中删除，重试到提交成功
+     */
+    private boolean submitEventually(String key, Runnable task) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (executor.submit(key, 0, task)) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_TTL_JITTER_RATIO;
+
+/**
+ * XFetch提前刷新的概率，以及过期时间的随机抖动
+ * 刷新概率 = P(-delta * beta * ln(random) >= remaining) = exp(-remaining / (delta * beta))
+ */
+class EarlyRefreshTest {
+
+    private static final int TRIALS = 20000;
+
+    @Test
+    void alwaysRefreshesAfterExpiry() {
+        Assertions.assertEquals(TRIALS, refreshes(-1, 100L));
+    }
+
+    @Test
+    void neverRefreshesFarFromExpiry() {
+        //一小时后过期、重建100ms，-ln(random)最大只有37左右，不可能刷新
+        Assertions.assertEquals(0, refreshes(TimeUnit.HOURS.toMillis(1), 100L));
+    }
+
+    @Test
+    void refreshProbabilityFollowsXFetch() {
+        //剩余时间等于重建耗时（按XFETCH_BETA=1）：exp(-1) ≈ 0.37；留出时间在计算期间流逝的误差
+        long delta = 10000L;
+        double expected = Math.exp(-1 / RedisConstants.XFETCH_BETA);
+        double actual = (double) refreshes(delta, delta) / TRIALS;
+        Assertions.assertEquals(expected, actual, 0.03);
+    }
+
+    @Test
+    void slowerRebuildRefreshesEarlier() {
+        long remaining = 5000L;
+        int fast = refreshes(remaining, 1000L);
+        int slow = refreshes(remaining, 10000L);
+        //exp(-5) ≈ 0.007，exp(-0.5) ≈ 0.61
+        Assertions.assertTrue(slow > fast * 10, "slow " + slow + ", fast " + fast);
+    }
+
+    @Test
+    void missingDeltaUsesDefault() {
+        //剩余时间是默认重建耗时的100倍，不会刷新
+        Assertions.assertEquals(0, refreshes(RedisConstants.XFETCH_DEFAULT_DELTA * 100, null));
+    }
+
+    @Test
+    void jitterStaysWithinRatio() {
+        long base = TimeUnit.MINUTES.toMillis(30);
+        long max = base + (long) (base * CACHE_TTL_JITTER_RATIO);
+        long min = Long.MAX_VALUE;
+        long maxSeen = 0;
+        for (int i = 0; i < TRIALS; i++) {
+            long ttl = CacheClient.withJitter(30L, TimeUnit.MINUTES);
+            Assertions.assertTrue(ttl >= base && ttl <= max, "ttl " + ttl);
+            min = Math.min(min, ttl);
+            maxSeen = Math.max(maxSeen, ttl);
+        }
+        //确实有抖动，不是都一样
+        Assertions.assertTrue(maxSeen - min > (max - base) / 2);
+    }
+
+    private static int refreshes(long remainingMillis, Long delta) {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.now().plus(remainingMillis, ChronoUnit.MILLIS));
+        redisData.setDelta(delta);
+        int count = 0;
+        for (int i = 0; i < TRIALS; i++) {
+            if (CacheClient.shouldRefreshEarly(redisData)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
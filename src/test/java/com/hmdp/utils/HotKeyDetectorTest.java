@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 热点key探测：达到阈值后晋升、热点个数上限、窗口滑过之后降级、采样后的估算
+ */
+class HotKeyDetectorTest {
+
+    @Test
+    void promotesAtThreshold() {
+        HotKeyDetector detector = new HotKeyDetector(3, 60000, 1, 10, 10);
+        for (int i = 0; i < 9; i++) {
+            Assertions.assertFalse(detector.record("cache:shop:1"));
+        }
+        Assertions.assertFalse(detector.isHot("cache:shop:1"));
+        Assertions.assertEquals(9, detector.estimate("cache:shop:1"));
+
+        Assertions.assertTrue(detector.record("cache:shop:1"));
+
+        Assertions.assertTrue(detector.isHot("cache:shop:1"));
+        Assertions.assertFalse(detector.isHot("cache:shop:2"));
+        Assertions.assertEquals(10L, detector.getHotKeys().get("cache:shop:1"));
+    }
+
+    @Test
+    void limitsHotKeys() {
+        HotKeyDetector detector = new HotKeyDetector(3, 60000, 1, 5, 2);
+        for (String key : Arrays.asList("cache:shop:1", "cache:shop:2", "cache:shop:3")) {
+            for (int i = 0; i < 5; i++) {
+                detector.record(key);
+            }
+        }
+
+        Assertions.assertEquals(Arrays.asList("cache:shop:1", "cache:shop:2"),
+                new ArrayList<>(detector.getHotKeys().keySet()));
+        Assertions.assertFalse(detector.isHot("cache:shop:3"));
+    }
+
+    @Test
+    void hotKeysSortedByEstimate() {
+        HotKeyDetector detector = new HotKeyDetector(3, 60000, 1, 5, 10);
+        for (int i = 0; i < 5; i++) {
+            detector.record("cache:shop:1");
+        }
+        for (int i = 0; i < 20; i++) {
+            detector.record("cache:shop:2");
+        }
+
+        Map<String, Long> hotKeys = detector.getHotKeys();
+
+        Assertions.assertEquals(Arrays.asList("cache:shop:2", "cache:shop:1"), new ArrayList<>(hotKeys.keySet()));
+        Assertions.assertEquals(20L, hotKeys.get("cache:shop:2"));
+    }
+
+    @Test
+    void decaysAfterAllWindowsPass() throws InterruptedException {
+        //2个窗口，每个50ms
+        HotKeyDetector detector = new HotKeyDetector(2, 50, 1, 5, 10);
+        for (int i = 0; i < 5; i++) {
+            detector.record("cache:shop:1");
+        }
+        Assertions.assertTrue(detector.isHot("cache:shop:1"));
+
+        Thread.sleep(150);
+
+        Assertions.assertFalse(detector.isHot("cache:shop:1"));
+        Assertions.assertTrue(detector.getHotKeys().isEmpty());
+        //再访问一次，旧窗口已经清空，只剩这一次
+        Assertions.assertFalse(detector.record("cache:shop:1"));
+        Assertions.assertEquals(1, detector.estimate("cache:shop:1"));
+    }
+
+    @Test
+    void sampledEstimateIsClose() {
+        HotKeyDetector detector = new HotKeyDetector(3, 60000, 10, Long.MAX_VALUE, 10);
+        for (int i = 0; i < 10000; i++) {
+            detector.record("cache:shop:1");
+        }
+        long estimate = detector.estimate("cache:shop:1");
+        //采样1/10，期望1000次，标准差约30次
+        Assertions.assertTrue(estimate > 8000 && estimate < 12000, "estimate " + estimate);
+    }
+}
@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * ETag的生成、If-None-Match的弱比较，以及304和200响应上的缓存头
+ */
+class HttpCacheUtilsTest {
+
+    private static final LocalDateTime UPDATE_TIME = LocalDateTime.of(2022, 1, 1, 12, 0, 0);
+
+    @Test
+    void etagIsWeakAndFollowsUpdateTime() {
+        String etag = HttpCacheUtils.etag(1L, UPDATE_TIME);
+
+        Assertions.assertTrue(etag.startsWith("W/\"1-") && etag.endsWith("\""), etag);
+        Assertions.assertEquals(etag, HttpCacheUtils.etag(1L, UPDATE_TIME));
+        //更新时间或者id变了，ETag也跟着变
+        Assertions.assertNotEquals(etag, HttpCacheUtils.etag(1L, UPDATE_TIME.plusSeconds(1)));
+        Assertions.assertNotEquals(etag, HttpCacheUtils.etag(2L, UPDATE_TIME));
+        //没有更新时间的按版本0
+        Assertions.assertEquals("W/\"1-0\"", HttpCacheUtils.etag(1L, null));
+    }
+
+    @Test
+    void matchesWeakAndStrong() {
+        String etag = HttpCacheUtils.etag("abc");
+
+        Assertions.assertTrue(HttpCacheUtils.matches("W/\"abc\"", etag));
+        //弱比较，客户端发来强ETag也算一致
+        Assertions.assertTrue(HttpCacheUtils.matches("\"abc\"", etag));
+        Assertions.assertFalse(HttpCacheUtils.matches("W/\"abd\"", etag));
+    }
+
+    @Test
+    void matchesListAndWildcard() {
+        String etag = HttpCacheUtils.etag("abc");
+
+        Assertions.assertTrue(HttpCacheUtils.matches("W/\"x\", W/\"abc\" ,\"y\"", etag));
+        Assertions.assertFalse(HttpCacheUtils.matches("W/\"x\", \"y\"", etag));
+        Assertions.assertTrue(HttpCacheUtils.matches("*", etag));
+    }
+
+    @Test
+    void noMatchWithoutHeaderOrEtag() {
+        Assertions.assertFalse(HttpCacheUtils.matches(null, HttpCacheUtils.etag("abc")));
+        Assertions.assertFalse(HttpCacheUtils.matches(" ", HttpCacheUtils.etag("abc")));
+        //店铺不存在时没有ETag，即使是*也不能返回304
+        Assertions.assertFalse(HttpCacheUtils.matches("*", null));
+    }
+
+    @Test
+    void notModifiedHasNoBody() {
+        String etag = HttpCacheUtils.etag("abc");
+
+        ResponseEntity<Result> response = HttpCacheUtils.notModified(etag, HttpCacheUtils.SHOP_CACHE_CONTROL);
+
+        Assertions.assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        Assertions.assertEquals(etag, response.getHeaders().getETag());
+        Assertions.assertEquals(HttpCacheUtils.SHOP_CACHE_CONTROL.getHeaderValue(), response.getHeaders().getCacheControl());
+        Assertions.assertNull(response.getBody());
+    }
+
+    @Test
+    void okCachesSuccessfulResult() {
+        String etag = HttpCacheUtils.etag(1L, UPDATE_TIME);
+        Result result = Result.ok("shop");
+
+        ResponseEntity<Result> response = HttpCacheUtils.ok(result, etag, HttpCacheUtils.SHOP_CACHE_CONTROL);
+
+        Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assertions.assertSame(result, response.getBody());
+        Assertions.assertEquals(etag, response.getHeaders().getETag());
+        String cacheControl = response.getHeaders().getCacheControl();
+        Assertions.assertTrue(cacheControl.contains("max-age=" + SystemConstants.SHOP_MAX_AGE), cacheControl);
+        Assertions.assertTrue(cacheControl.contains("stale-while-revalidate=" + SystemConstants.SHOP_STALE_WHILE_REVALIDATE), cacheControl);
+        Assertions.assertTrue(cacheControl.contains("public"), cacheControl);
+    }
+
+    @Test
+    void okDoesNotCacheFailureOrMissingEtag() {
+        String noStore = CacheControl.noStore().getHeaderValue();
+
+        ResponseEntity<Result> failed = HttpCacheUtils.ok(Result.fail("店铺不存在"),
+                HttpCacheUtils.etag("abc"), HttpCacheUtils.SHOP_CACHE_CONTROL);
+        ResponseEntity<Result> noEtag = HttpCacheUtils.ok(Result.ok("shop"), null, HttpCacheUtils.SHOP_CACHE_CONTROL);
+
+        for (ResponseEntity<Result> response : Arrays.asList(failed, noEtag)) {
+            Assertions.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assertions.assertNull(response.getHeaders().getETag());
+            Assertions.assertEquals(noStore, response.getHeaders().getCacheControl());
+        }
+    }
+}
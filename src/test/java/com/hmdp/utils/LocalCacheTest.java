@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地缓存：按写入顺序淘汰、过期时间、并发写入时不超出容量
+ */
+class LocalCacheTest {
+
+    @Test
+    void evictsEldestWrite() {
+        LocalCache<String> cache = new LocalCache<>(3, 1, TimeUnit.MINUTES);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        //查询不改变顺序，a还是最早写入的
+        Assertions.assertEquals("1", cache.get("a"));
+
+        cache.put("d", "4");
+
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertEquals("2", cache.get("b"));
+        Assertions.assertEquals("4", cache.get("d"));
+        Assertions.assertEquals(3, cache.size());
+        Assertions.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void rewriteMovesToTail() {
+        LocalCache<String> cache = new LocalCache<>(3, 1, TimeUnit.MINUTES);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        //重新写入a，最早写入的变成b
+        cache.put("a", "1'");
+
+        cache.put("d", "4");
+
+        Assertions.assertEquals("1'", cache.get("a"));
+        Assertions.assertNull(cache.get("b"));
+        Assertions.assertEquals(3, cache.size());
+    }
+
+    @Test
+    void expiresAfterTtl() throws InterruptedException {
+        LocalCache<String> cache = new LocalCache<>(10, 50, TimeUnit.MILLISECONDS);
+        cache.put("a", "1");
+        Assertions.assertEquals("1", cache.get("a"));
+
+        Thread.sleep(100);
+
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(1, cache.getHitCount());
+        Assertions.assertEquals(1, cache.getMissCount());
+        Assertions.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void rewriteRenewsTtl() throws InterruptedException {
+        LocalCache<String> cache = new LocalCache<>(10, 100, TimeUnit.MILLISECONDS);
+        cache.put("a", "1");
+        Thread.sleep(60);
+        cache.put("a", "2");
+        Thread.sleep(60);
+
+        Assertions.assertEquals("2", cache.get("a"));
+    }
+
+    @Test
+    void invalidate() {
+        LocalCache<String> cache = new LocalCache<>(10, 1, TimeUnit.MINUTES);
+        cache.put("shop:1", "1");
+        cache.put("shop:2", "2");
+        cache.put("blog:1", "3");
+
+        cache.invalidate("shop:1");
+        Assertions.assertNull(cache.get("shop:1"));
+
+        cache.invalidateIf(key -> key.startsWith("shop:"));
+        Assertions.assertNull(cache.get("shop:2"));
+        Assertions.assertEquals("3", cache.get("blog:1"));
+
+        cache.invalidateAll();
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    void concurrentWritesStayWithinCapacity() throws InterruptedException {
+        int capacity = 100;
+        LocalCache<Integer> cache = new LocalCache<>(capacity, 1, TimeUnit.MINUTES);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        String key = String.valueOf((thread * 10000 + i) % 1000);
+                        cache.put(key, i);
+                        cache.get(key);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        Assertions.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Assertions.assertTrue(cache.size() <= capacity, "size " + cache.size());
+        //查询表和写入顺序表一致：能查到的数量等于size，没有淘汰了却还能查到的
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get(String.valueOf(i)) != null) {
+                found++;
+            }
+        }
+        Assertions.assertEquals(cache.size(), found);
+    }
+}